@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.stream.Stream;
 
+import org.json.JSONObject;
+
 /**
  * This class implements a context of the Contextual Ego Network. The context stores all the information related
  * to the nodes, i.e. the actors that engage in interactions inside it,
@@ -11,6 +13,11 @@ import java.util.stream.Stream;
  * The context can be unloaded from memory using the {@link #cleanup()} function and can be forced to be written anew
  * in the device's storage by calling the {@link #removeFromStorage()} method. If the context is unloaded from memory,
  * references to it remain and its data are reloaded on the first demand or by calling {@link #load()}.
+ * If delta persistence is enabled through {@link Serializer#setDeltaPersistence(boolean)}, node, edge and
+ * interaction changes are appended to a delta file of the context, which is replayed when loading it.
+ * The interactions of the context's edges are stored in a separate file and are loaded only when first accessed.
+ * If {@link ContextualEgoNetwork#setOffHeapInteractions(boolean)} is enabled, loaded interactions are kept in
+ * off-heap memory, which is released when the context is unloaded.
  * 
  * @author Emmanouil Krasanakis (maniospas@iti.gr)
  * @author Barbara Guidi (guidi@di.unipi.it)
@@ -27,6 +34,11 @@ public final class Context extends CrossModuleComponent
      */
     private ArrayList<Node> nodes;
     private HashMap<String, Edge> edges;
+    /**
+     * Interactions of the edges (<code>null</code> if not loaded)
+     */
+    @Serializer.Serialization(enabled=false)
+    private ContextInteractions interactions;
 
     /**
      * Constructor method.
@@ -44,6 +56,8 @@ public final class Context extends CrossModuleComponent
         edges = new HashMap<String, Edge>();
         nodes.add(contextualEgoNetwork.getEgo());
         contextualEgoNetwork.getSerializer().registerId(this);
+        interactions = new ContextInteractions();
+        contextualEgoNetwork.getSerializer().registerId(interactions, getInteractionsSerializationId());
     }
     
     /**
@@ -56,15 +70,44 @@ public final class Context extends CrossModuleComponent
     
     /**
      * If the context is loaded, it is serialized to a file. The context's nodes
-     * are not serialized though
+     * are not serialized though. The context is written regardless of whether it is known
+     * to have been modified, so that changes to its data objects are also saved.
+     * If delta persistence is enabled (see {@link Serializer#setDeltaPersistence(boolean)}), this is
+     * equivalent to {@link #saveDirty()}, so that recorded changes are appended to the context's delta file
+     * instead of rewriting it. In that case, changes to data objects are saved only if the context is
+     * marked with {@link #markDirty()}.
      * @return Whether the context was saved.
+     * @see #saveDirty()
      */
     public boolean save() {
+    	return save(false);
+    }
+    
+    /**
+     * If the context is loaded and has been modified since it was last saved or loaded, it is serialized
+     * to a file, or its changes are appended to its delta file if possible. Changes to data objects
+     * are not tracked (see {@link ContextualEgoNetwork#saveDirty()}).
+     * @return Whether the context is stored without errors, even if it did not need to be saved.
+     * @see #markDirty()
+     */
+    public boolean saveDirty() {
+    	return save(true);
+    }
+    
+    private boolean save(boolean onlyDirty) {
     	if(nodes==null) 
     		return false;
     	//for(Node node : nodes) 
         	//contextualEgoNetwork.getSerializer().save(node);
-    	boolean succesfull = getContextualEgoNetwork().getSerializer().save(this);
+    	Serializer serializer = getContextualEgoNetwork().getSerializer();
+    	if(serializer.isDeltaPersistence())
+    		onlyDirty = true;
+    	boolean succesfull = onlyDirty ? serializer.saveIfDirty(this) : serializer.save(this);
+    	if(interactions!=null) {
+    		ArrayList<String> offHeapEdgeIds = attachOffHeapInteractions(onlyDirty);
+    		succesfull = (onlyDirty ? serializer.saveIfDirty(interactions) : serializer.save(interactions)) && succesfull;
+    		detachOffHeapInteractions(offHeapEdgeIds);
+    	}
         for(ContextualEgoNetworkListener listener : getContextualEgoNetwork().getListeners())
         	listener.onSaveContext(this);
     	return succesfull;
@@ -75,19 +118,29 @@ public final class Context extends CrossModuleComponent
      * These files will be re-created once the context is saved again.
      */
     protected void removeFromStorage() {
+    	assertInteractionsLoaded();
     	getContextualEgoNetwork().getSerializer().removeFromStorage(this);
+    	getContextualEgoNetwork().getSerializer().removeFromStorage(interactions);
     }
     
     /**
      * Saves the context to a file and removes its data memory and it from the dynamic serializer
-     * (so that universal save does not save it anymore)
+     * (so that universal save does not save it anymore). If delta persistence is enabled, only
+     * the context's recorded changes are saved, as in {@link #save()}.
      * @see #save()
      */
-    public void cleanup() {
+    public synchronized void cleanup() {
     	save();
     	getContextualEgoNetwork().getSerializer().setSavePermission(this, false);
+    	if(interactions!=null)
+    		getContextualEgoNetwork().getSerializer().setSavePermission(interactions, false);
+    	releaseOffHeapInteractions();
+    	ContextCache cache = getContextualEgoNetwork().getContextCache();
+    	if(cache!=null)
+    		cache.remove(this);
     	nodes = null;
     	edges = null;
+    	interactions = null;
     }
     
     /**
@@ -95,24 +148,297 @@ public final class Context extends CrossModuleComponent
      * This operation is automatically performed on-demand by other context access operations.
      */
     public void load() {
+    	synchronized(this) {
+    		loadContents();
+    	}
+    	ContextCache cache = getContextualEgoNetwork().getContextCache();
+    	if(cache!=null)
+    		cache.recordMiss(this);
+    }
+    
+    /**
+     * Loads the context's contents, while holding the context's lock.
+     * @see #load()
+     */
+    private void loadContents() {
+    	if(edges!=null)
+    		releaseOffHeapInteractions();
+    	interactions = null;
     	getContextualEgoNetwork().getSerializer().reload(this, 1);//loads all of its nodes too
     	getContextualEgoNetwork().getSerializer().setSavePermission(this, true);
+    	// contexts saved by earlier versions hold their interactions, which are moved to a separate file
+    	for(Edge edge : edges.values())
+    		if(edge.isInteractionsLoaded()) {
+    			assertInteractionsLoaded();
+    			markDirty();
+    			break;
+    		}
+    	String delta = getContextualEgoNetwork().getSerializer().loadDelta(this);
+    	if(!delta.isEmpty())
+    		replayDelta(delta);
     	Utils.log("Loaded context "+data.toString()+" with "+nodes.size()+" nodes, "+edges.size()+" edges");
         for(ContextualEgoNetworkListener listener : getContextualEgoNetwork().getListeners())
         	listener.onLoadContext(this);
     }
     
     /**
-     * Is used to assert that the context is loaded, producing an error if it's not
+     * @return The id under which the interactions of the context are serialized
+     */
+    private String getInteractionsSerializationId() {
+    	return getSerializationId()+".interactions";
+    }
+    
+    /**
+     * Loads the interactions of the context's edges if they have not been loaded yet.
+     * Edges whose interactions are already in memory (e.g. new edges) retain them.
+     */
+    void assertInteractionsLoaded() {
+    	assertLoaded();
+    	if(interactions!=null)
+    		return;
+    	Serializer serializer = getContextualEgoNetwork().getSerializer();
+    	ContextInteractions loaded = new ContextInteractions();
+    	serializer.registerId(loaded, getInteractionsSerializationId());
+    	if(serializer.isStored(loaded)) {
+    		serializer.reload(loaded);
+        	String delta = serializer.loadDelta(loaded);
+        	if(!delta.isEmpty())
+        		loaded.replay(delta, serializer);
+    	}
+    	InteractionArena arena = getContextualEgoNetwork().getInteractionArena();
+    	boolean modified = false;
+    	for(Edge edge : edges.values()) {
+    		String edgeId = edge.getSrc().getId()+"@"+edge.getDst().getId();
+    		ArrayList<Interaction> edgeInteractions = loaded.get(edgeId);
+    		if(edge.isInteractionsOffHeap()) {
+    			loaded.remove(edgeId);
+    			modified = true;
+    		}
+    		else if(edge.isInteractionsLoaded()) {
+    			if(edgeInteractions!=edge.getInteractionList()) {
+    				loaded.put(edgeId, edge.getInteractionList());
+    				modified = true;
+    			}
+    		}
+    		else {
+    			if(edgeInteractions==null)
+    				loaded.put(edgeId, edgeInteractions = new ArrayList<Interaction>());
+    			edge.setInteractionList(edgeInteractions);
+    			if(arena!=null) {
+    				edge.moveInteractionsOffHeap(arena);
+    				loaded.remove(edgeId);
+    			}
+    		}
+    	}
+    	if(loaded.retainAll(edges.keySet()))
+    		modified = true;
+    	interactions = loaded;
+    	serializer.setSavePermission(interactions, true);
+    	if(modified)
+    		serializer.markDirty(interactions);
+    }
+    
+    /**
+     * Removes the stored interactions of an edge removed from the context.
+     * @param edge The removed edge
+     */
+    private void removeInteractions(Edge edge) {
+    	assertInteractionsLoaded();
+    	boolean removed = edge.isInteractionsOffHeap();
+    	// removed edges retain their interactions, but not the context's off-heap memory
+    	edge.moveInteractionsOnHeap();
+    	if(interactions.remove(edge.getSrc().getId()+"@"+edge.getDst().getId()) || removed)
+    		getContextualEgoNetwork().getSerializer().markDirty(interactions);
+    }
+    
+    /**
+     * Off-heap interactions are only added to the object that stores the context's interactions while the latter
+     * is being saved. This adds interaction objects for all edges with off-heap interactions to the stored
+     * interactions, if these are loaded and will be saved.
+     * @param onlyDirty Whether interactions are saved only if they have been modified
+     * @return The ids of edges whose interactions were added
+     * @see #detachOffHeapInteractions(ArrayList)
+     */
+    ArrayList<String> attachOffHeapInteractions(boolean onlyDirty) {
+    	ArrayList<String> offHeapEdgeIds = new ArrayList<String>();
+    	if(interactions==null || (onlyDirty && !getContextualEgoNetwork().getSerializer().isDirty(interactions)))
+    		return offHeapEdgeIds;
+    	for(Edge edge : edges.values())
+    		if(edge.isInteractionsOffHeap()) {
+    			String edgeId = edge.getSrc().getId()+"@"+edge.getDst().getId();
+    			interactions.put(edgeId, edge.getInteractions());
+    			offHeapEdgeIds.add(edgeId);
+    		}
+    	return offHeapEdgeIds;
+    }
+    
+    /**
+     * Removes the interaction objects added by {@link #attachOffHeapInteractions(boolean)} after saving.
+     * @param offHeapEdgeIds The ids of edges whose interactions were added
+     */
+    void detachOffHeapInteractions(ArrayList<String> offHeapEdgeIds) {
+    	if(interactions!=null)
+    		for(String edgeId : offHeapEdgeIds)
+    			interactions.remove(edgeId);
+    }
+    
+    /**
+     * Returns the off-heap memory of all of the context's edges to the arena of its contextual ego network.
+     */
+    private void releaseOffHeapInteractions() {
+    	if(edges==null)
+    		return;
+    	for(Edge edge : edges.values())
+    		edge.releaseInteractionBuffer();
+    }
+    
+    /**
+     * Retrieves the number of off-heap bytes allocated for the interactions of the context's edges.
+     * This is zero if the context's interactions are not loaded or are not kept off-heap.
+     * @return The number of allocated bytes
+     * @see ContextualEgoNetwork#setOffHeapInteractions(boolean)
+     */
+    public long getOffHeapInteractionBytes() {
+    	if(edges==null)
+    		return 0;
+    	long bytes = 0;
+    	for(Edge edge : edges.values())
+    		bytes += edge.getOffHeapInteractionBytes();
+    	return bytes;
+    }
+    
+    /**
+     * Applies the changes of the context's delta file to its loaded contents, without notifying
+     * listeners. Changes involving nodes that no longer exist are skipped.
+     * @param delta The changes, one per line
+     */
+    private void replayDelta(String delta) {
+    	Serializer serializer = getContextualEgoNetwork().getSerializer();
+    	int changes = 0;
+    	for(String line : delta.split("\n")) {
+    		if(line.trim().isEmpty())
+    			continue;
+    		JSONObject change = new JSONObject(line);
+    		String operation = change.getString("op");
+    		if(operation.equals("addNode") || operation.equals("removeNode")) {
+    			Node node = findNode(serializer, change.getString("node"));
+    			if(node==null)
+    				continue;
+    			if(operation.equals("addNode") && !nodes.contains(node))
+    				nodes.add(node);
+    			else if(operation.equals("removeNode")) {
+    				for(Edge edge : new ArrayList<Edge>(edges.values()))
+    					if(edge.getSrc()==node || edge.getDst()==node) {
+    						edges.remove(edge.getSrc().getId()+"@"+edge.getDst().getId());
+    						edge.releaseInteractionBuffer();
+    					}
+    				nodes.remove(node);
+    			}
+    		}
+    		else {
+    			String edgeId = change.getString("src")+"@"+change.getString("dst");
+    			if(operation.equals("addEdge") && !edges.containsKey(edgeId)) {
+    				Node src = findNode(serializer, change.getString("src"));
+    				Node dst = findNode(serializer, change.getString("dst"));
+    				if(src!=null && dst!=null) {
+    					Edge edge = new Edge(getContextualEgoNetwork(), src, dst, this);
+    					// the edge's interactions may have been stored since the change
+    					if(interactions==null)
+    						edge.setInteractionList(null);
+    					else if(!edge.isInteractionsOffHeap())
+    						interactions.put(edgeId, edge.getInteractionList());
+    					edges.put(edgeId, edge);
+    				}
+    			}
+    			else if(operation.equals("removeEdge") && edges.containsKey(edgeId))
+    				edges.remove(edgeId).releaseInteractionBuffer();
+    			else if(operation.equals("addInteraction") && edges.containsKey(edgeId))
+    				edges.get(edgeId).restoreInteraction(change.getLong("start"), change.getLong("duration"), 
+    						serializer.deserializeFromString(change.getString("data")));
+    		}
+    		changes++;
+    	}
+    	Utils.log("Replayed "+changes+" changes on context "+data.toString());
+    }
+    
+    private static Node findNode(Serializer serializer, String id) {
+    	Object node = serializer.getObjectOrNull(id);
+    	return node instanceof Node ? (Node)node : null;
+    }
+    
+    /**
+     * Marks the context as modified by a change that can be appended to its delta file.
+     * The change's description is only created if delta persistence is enabled.
+     * @param operation The change's operation
+     * @param keyValues Alternating keys and node ids describing the change
+     */
+    private void recordChange(String operation, String... keyValues) {
+    	Serializer serializer = getContextualEgoNetwork().getSerializer();
+    	if(!serializer.isDeltaPersistence()) {
+    		markDirty();
+    		return;
+    	}
+    	JSONObject change = new JSONObject();
+    	change.put("op", operation);
+    	for(int i=0;i<keyValues.length;i+=2)
+    		change.put(keyValues[i], keyValues[i+1]);
+    	serializer.recordChange(this, change.toString());
+    }
+    
+    /**
+     * Marks the context's interactions as modified by a new interaction on one of its edges.
+     * @param interaction The new interaction
+     */
+    void recordInteraction(Interaction interaction) {
+    	Serializer serializer = getContextualEgoNetwork().getSerializer();
+    	if(serializer.isDeltaPersistence())
+    		serializer.recordChange(interactions, ContextInteractions.describeAddition(interaction, serializer));
+    	else
+    		serializer.markDirty(interactions);
+    }
+    
+    /**
+     * Is used to assert that the context is loaded, producing an error if it's not.
+     * If the context is being loaded by another thread (e.g. when prefetched), this waits for loading to complete.
      * @return Whether the context is loaded
      * @see #isLoaded()
      */
     protected boolean assertLoaded() {
-    	if(!isLoaded()) 
-    		load();
+    	boolean wasLoaded;
+    	synchronized(this) {
+    		wasLoaded = isLoaded();
+    		if(!wasLoaded)
+    			loadContents();
+    	}
+    	ContextCache cache = getContextualEgoNetwork().getContextCache();
+    	if(cache!=null) {
+    		if(wasLoaded)
+    			cache.recordHit(this);
+    		else
+    			cache.recordMiss(this);
+    	}
     	return true;
     }
     
+    /**
+     * Roughly estimates the heap memory occupied by the context's loaded contents, excluding its nodes (which are
+     * shared between contexts) and the data objects of interactions. Loaded interactions that are kept off-heap
+     * are accounted for by their allocated off-heap memory.
+     * @return The estimated number of bytes, zero if the context is not loaded
+     * @see ContextualEgoNetwork#setContextCacheBudget(int, long)
+     */
+    long estimateMemoryUsage() {
+    	if(edges==null)
+    		return 0;
+    	long bytes = nodes.size()*8L;
+    	for(Edge edge : edges.values()) {
+    		bytes += ContextCache.ESTIMATED_EDGE_BYTES + edge.getOffHeapInteractionBytes();
+    		if(edge.getInteractionList()!=null)
+    			bytes += edge.getInteractionList().size()*ContextCache.ESTIMATED_INTERACTION_BYTES;
+    	}
+    	return bytes;
+    }
+    
     /**
      * Checks whether the context has been loaded in memory.
      * @return <code>true</code> if the context has has been loaded, <code>false</code> otherwise.
@@ -172,6 +498,9 @@ public final class Context extends CrossModuleComponent
         	return Utils.error(new IllegalArgumentException("Edge already exists in context (maybe you meant to add a new interaction on that edge instead)"), getEdge(src, dst));
         Edge edge = new Edge(getContextualEgoNetwork(), src, dst, this);
         edges.put(edge.getSrc().getId()+"@"+edge.getDst().getId(), edge);
+        if(interactions!=null && !edge.isInteractionsOffHeap())
+        	interactions.put(edge.getSrc().getId()+"@"+edge.getDst().getId(), edge.getInteractionList());
+        recordChange("addEdge", "src", src.getId(), "dst", dst.getId());
         for(ContextualEgoNetworkListener listener : getContextualEgoNetwork().getListeners())
         	listener.onCreateEdge(edge);
         return edge;
@@ -227,6 +556,8 @@ public final class Context extends CrossModuleComponent
         for(ContextualEgoNetworkListener listener : getContextualEgoNetwork().getListeners())
         	listener.onRemoveEdge(edge);
     	edges.remove(edge.getSrc().getId()+"@"+edge.getDst().getId());
+    	removeInteractions(edge);
+    	recordChange("removeEdge", "src", src.getId(), "dst", dst.getId());
     	return edge;
     }
 
@@ -241,6 +572,7 @@ public final class Context extends CrossModuleComponent
         if(nodes.contains(node)) {Utils.error("Node already in context"); return;}
         nodes.add(node);
         getContextualEgoNetwork().getSerializer().registerId(node, node.getId());
+        recordChange("addNode", "node", node.getId());
         for(ContextualEgoNetworkListener listener : getContextualEgoNetwork().getListeners())
         	listener.onAddNode(this, node);
     }
@@ -258,6 +590,7 @@ public final class Context extends CrossModuleComponent
         	assertSameContextualEgoNetwork(node);
             nodes.add(node);
             getContextualEgoNetwork().getSerializer().registerId(node, node.getId());
+            recordChange("addNode", "node", node.getId());
             for(ContextualEgoNetworkListener listener : getContextualEgoNetwork().getListeners())
             	listener.onAddNode(this, node);
         }
@@ -291,9 +624,12 @@ public final class Context extends CrossModuleComponent
         for(ContextualEgoNetworkListener listener : getContextualEgoNetwork().getListeners())
         	listener.onRemoveNode(this, node);
         for(Edge edge : getEdges())
-        	if(edge.getSrc()==node || edge.getDst()==node)
+        	if(edge.getSrc()==node || edge.getDst()==node) {
         		edges.remove(edge.getSrc().getId()+"@"+edge.getDst().getId());
+        		removeInteractions(edge);
+        	}
         nodes.remove(node);
+        recordChange("removeNode", "node", node.getId());
     }
 
     /**
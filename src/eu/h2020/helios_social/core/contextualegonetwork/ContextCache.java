@@ -0,0 +1,172 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * This class implements the cache of loaded contexts that a {@link ContextualEgoNetwork} uses to bound the
+ * memory occupied by its contexts. Contexts are kept in order of access recency, where accesses are reported
+ * by {@link Context#assertLoaded()}. Whenever a context is loaded and the number of loaded contexts or their
+ * estimated memory exceed the cache's budget, the least recently used contexts are unloaded with
+ * {@link Context#cleanup()}, with the exception of the network's current context and the loaded context.
+ * Contexts loaded by the {@link ContextPrefetcher} thread do not unload other contexts, since these may be
+ * concurrently accessed by other threads. Instead, unloading is deferred until the next access from another thread.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class ContextCache {
+	/**
+	 * Rough estimates of the heap occupied by each loaded edge and interaction of a context
+	 */
+	static final long ESTIMATED_EDGE_BYTES = 160;
+	static final long ESTIMATED_INTERACTION_BYTES = 64;
+
+	private final ContextualEgoNetwork contextualEgoNetwork;
+	private final LinkedHashMap<Context, Boolean> loadedContexts = new LinkedHashMap<Context, Boolean>(16, 0.75f, true);
+	private int maxContexts;
+	private long maxMemory;
+	private final HashSet<Thread> evictingThreads = new HashSet<Thread>();
+	private boolean evictionPending = false;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param contextualEgoNetwork The network whose contexts are cached
+	 * @param maxContexts The maximum number of loaded contexts, zero for no limit
+	 * @param maxMemory The maximum estimated memory of loaded contexts in bytes, zero for no limit
+	 */
+	ContextCache(ContextualEgoNetwork contextualEgoNetwork, int maxContexts, long maxMemory) {
+		this.contextualEgoNetwork = contextualEgoNetwork;
+		this.maxContexts = maxContexts;
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * Changes the budget of the cache, which is enforced the next time a context is loaded.
+	 * @param maxContexts The maximum number of loaded contexts, zero for no limit
+	 * @param maxMemory The maximum estimated memory of loaded contexts in bytes, zero for no limit
+	 */
+	synchronized void setBudget(int maxContexts, long maxMemory) {
+		this.maxContexts = maxContexts;
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * Marks a loaded context as the most recently used one and unloads the least recently used contexts if
+	 * this was deferred by background loading. Accesses made while unloading contexts are ignored.
+	 * @param context The accessed context
+	 */
+	void recordHit(Context context) {
+		synchronized (this) {
+			if (evictingThreads.contains(Thread.currentThread()))
+				return;
+			hits++;
+			loadedContexts.put(context, Boolean.TRUE);
+			if (!evictionPending || ContextPrefetcher.isPrefetchThread())
+				return;
+		}
+		evict(context);
+	}
+
+	/**
+	 * Adds a newly loaded context as the most recently used one and unloads the least recently used contexts
+	 * if the budget is exceeded. When called by the {@link ContextPrefetcher} thread, unloading is deferred.
+	 * @param context The loaded context
+	 */
+	void recordMiss(Context context) {
+		synchronized (this) {
+			if (evictingThreads.contains(Thread.currentThread()))
+				return;
+			misses++;
+			loadedContexts.put(context, Boolean.TRUE);
+			if (ContextPrefetcher.isPrefetchThread()) {
+				evictionPending = true;
+				return;
+			}
+		}
+		evict(context);
+	}
+
+	/**
+	 * Unloads the least recently used contexts if the budget is exceeded.
+	 * @param context The accessed context, which is not unloaded
+	 */
+	private void evict(Context context) {
+		ArrayList<Context> evicted = new ArrayList<Context>();
+		synchronized (this) {
+			if (evictingThreads.contains(Thread.currentThread()))
+				return;
+			evictionPending = false;
+			long memory = 0;
+			if (maxMemory > 0)
+				for (Context loaded : loadedContexts.keySet())
+					memory += loaded.estimateMemoryUsage();
+			int count = loadedContexts.size();
+			for (Context candidate : loadedContexts.keySet()) {
+				if ((maxContexts <= 0 || count <= maxContexts) && (maxMemory <= 0 || memory <= maxMemory))
+					break;
+				if (candidate == context || candidate == contextualEgoNetwork.getCurrentContext())
+					continue;
+				evicted.add(candidate);
+				count--;
+				if (maxMemory > 0)
+					memory -= candidate.estimateMemoryUsage();
+			}
+			for (Context candidate : evicted)
+				loadedContexts.remove(candidate);
+			evictions += evicted.size();
+			if (evicted.isEmpty())
+				return;
+			evictingThreads.add(Thread.currentThread());
+		}
+		try {
+			for (Context candidate : evicted)
+				candidate.cleanup();
+		}
+		finally {
+			synchronized (this) {
+				evictingThreads.remove(Thread.currentThread());
+			}
+		}
+		Utils.log("Unloaded " + evicted.size() + " least recently used contexts");
+	}
+
+	/**
+	 * Adds a loaded context as the most recently used one, without counting an access.
+	 * @param context The loaded context
+	 */
+	synchronized void add(Context context) {
+		loadedContexts.put(context, Boolean.TRUE);
+	}
+
+	/**
+	 * Removes a context that has been unloaded or removed from the network.
+	 * @param context The context to remove
+	 */
+	synchronized void remove(Context context) {
+		loadedContexts.remove(context);
+	}
+
+	/**
+	 * @return The number of accesses to loaded contexts
+	 */
+	synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of accesses that needed to load contexts
+	 */
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The number of contexts unloaded to meet the budget
+	 */
+	synchronized long getEvictions() {
+		return evictions;
+	}
+}
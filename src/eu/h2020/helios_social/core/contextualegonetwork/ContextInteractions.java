@@ -0,0 +1,98 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import org.json.JSONObject;
+
+/**
+ * This class implements the segment in which the interactions of a {@link Context}'s edges are stored.
+ * Segments are saved in their own file, separately from the context, so that loading a context does not
+ * need to load its interactions too. The latter are loaded only once an edge's interactions are first accessed.
+ * Segments are organized per edge, where edges are identified by their source and destination node ids.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class ContextInteractions {
+	private HashMap<String, ArrayList<Interaction>> interactions = new HashMap<String, ArrayList<Interaction>>();
+
+	/**
+	 * Used in deserialization
+	 */
+	ContextInteractions() {}
+
+	/**
+	 * @param edgeId The id of an edge, comprising its source and destination node ids
+	 * @return The interactions of the edge, <code>null</code> if the segment holds no interactions for it
+	 */
+	ArrayList<Interaction> get(String edgeId) {
+		return interactions.get(edgeId);
+	}
+
+	/**
+	 * Sets the interactions of an edge.
+	 * @param edgeId The id of an edge, comprising its source and destination node ids
+	 * @param edgeInteractions The list of the edge's interactions
+	 */
+	void put(String edgeId, ArrayList<Interaction> edgeInteractions) {
+		interactions.put(edgeId, edgeInteractions);
+	}
+
+	/**
+	 * Removes the interactions of an edge.
+	 * @param edgeId The id of an edge, comprising its source and destination node ids
+	 * @return Whether the segment held interactions for the edge
+	 */
+	boolean remove(String edgeId) {
+		return interactions.remove(edgeId) != null;
+	}
+
+	/**
+	 * Removes the interactions of all edges not in the given collection of ids.
+	 * @param edgeIds The ids of edges whose interactions should be retained
+	 * @return Whether any interactions were removed
+	 */
+	boolean retainAll(Collection<String> edgeIds) {
+		return interactions.keySet().retainAll(edgeIds);
+	}
+
+	/**
+	 * Describes the addition of an interaction as a change to be appended to the segment's delta file.
+	 * @param interaction The added interaction
+	 * @param serializer The serializer used to serialize the interaction's data
+	 * @return The description of the change
+	 * @see Serializer#recordChange(Object, String)
+	 */
+	static String describeAddition(Interaction interaction, Serializer serializer) {
+		JSONObject change = new JSONObject();
+		change.put("op", "addInteraction");
+		change.put("src", interaction.getEdge().getSrc().getId());
+		change.put("dst", interaction.getEdge().getDst().getId());
+		change.put("start", interaction.getStartTime());
+		change.put("duration", interaction.getDuration());
+		change.put("data", serializer.serializeToString(interaction.getData()));
+		return change.toString();
+	}
+
+	/**
+	 * Applies the changes of the segment's delta file.
+	 * @param delta The changes, one per line
+	 * @param serializer The serializer used to deserialize the interactions' data
+	 */
+	void replay(String delta, Serializer serializer) {
+		for (String line : delta.split("\n")) {
+			if (line.trim().isEmpty())
+				continue;
+			JSONObject change = new JSONObject(line);
+			if (!change.getString("op").equals("addInteraction"))
+				continue;
+			String edgeId = change.getString("src") + "@" + change.getString("dst");
+			ArrayList<Interaction> edgeInteractions = interactions.get(edgeId);
+			if (edgeInteractions == null)
+				interactions.put(edgeId, edgeInteractions = new ArrayList<Interaction>());
+			edgeInteractions.add(new Interaction(null, change.getLong("start"), change.getLong("duration"),
+					serializer.deserializeFromString(change.getString("data"))));
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class implements the background loading of the contexts that {@link ContextTransitions} predict to
+ * become current next, so that switching to them with {@link ContextualEgoNetwork#setCurrent(Context)} does not
+ * block on loading them. Contexts are loaded by a single daemon thread. At most a fixed number of contexts loaded
+ * this way and not yet made current are kept loaded; the rest are unloaded with {@link Context#cleanup()} once
+ * they are no longer predicted. Contexts are only unloaded by the thread that changes the current context and
+ * never while being loaded in the background, since contexts are otherwise accessed without synchronization.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class ContextPrefetcher {
+	private final ContextualEgoNetwork contextualEgoNetwork;
+	private final int maxPrefetched;
+	private final HashSet<Context> prefetched = new HashSet<Context>();
+	private final HashSet<Context> stale = new HashSet<Context>();
+	private Context loading = null;
+	private final ExecutorService executor;
+	private long prefetchedContexts = 0;
+	private long prefetchHits = 0;
+
+	/**
+	 * @param contextualEgoNetwork The network whose contexts are prefetched
+	 * @param maxPrefetched The maximum number of prefetched contexts kept loaded before becoming current
+	 */
+	ContextPrefetcher(ContextualEgoNetwork contextualEgoNetwork, int maxPrefetched) {
+		this.contextualEgoNetwork = contextualEgoNetwork;
+		this.maxPrefetched = maxPrefetched;
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new PrefetchThread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private static final class PrefetchThread extends Thread {
+		PrefetchThread(Runnable runnable) {
+			super(runnable, "CEN context prefetching");
+		}
+	}
+
+	/**
+	 * @return Whether the calling thread loads contexts in the background
+	 */
+	static boolean isPrefetchThread() {
+		return Thread.currentThread() instanceof PrefetchThread;
+	}
+
+	/**
+	 * @return The current hour of the day (0-23)
+	 */
+	static int getCurrentHour() {
+		return Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+	}
+
+	/**
+	 * Reacts to a context becoming current by counting whether it was prefetched and by prefetching the contexts
+	 * predicted to become current next. Previously prefetched contexts that are no longer predicted are unloaded,
+	 * unless they are being loaded in the background, in which case they are unloaded on a subsequent call.
+	 * @param current The new current context
+	 * @param transitions The statistics used to predict the next contexts
+	 */
+	void onSetCurrent(Context current, ContextTransitions transitions) {
+		ArrayList<Context> predicted = new ArrayList<Context>();
+		for (String contextId : transitions.predict(current.getSerializationId(), getCurrentHour(), maxPrefetched)) {
+			Context context = contextualEgoNetwork.getContextBySerializationId(contextId);
+			if (context != null)
+				predicted.add(context);
+		}
+		final ArrayList<Context> loads = new ArrayList<Context>();
+		ArrayList<Context> unloads = new ArrayList<Context>();
+		synchronized (this) {
+			if (prefetched.remove(current))
+				prefetchHits++;
+			for (Context context : prefetched)
+				if (!predicted.contains(context))
+					stale.add(context);
+			prefetched.removeAll(stale);
+			stale.remove(current);
+			stale.removeAll(predicted);
+			for (Context context : stale)
+				if (context != loading)
+					unloads.add(context);
+			stale.removeAll(unloads);
+			for (Context context : predicted)
+				if (!context.isLoaded() && prefetched.size() < maxPrefetched) {
+					prefetched.add(context);
+					loads.add(context);
+				}
+			prefetchedContexts += loads.size();
+		}
+		for (Context context : unloads)
+			if (context.isLoaded() && context != contextualEgoNetwork.getCurrentContext())
+				context.cleanup();
+		if (loads.isEmpty())
+			return;
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				for (Context context : loads) {
+					synchronized (ContextPrefetcher.this) {
+						// contexts that are no longer predicted may already have been unloaded
+						if (!prefetched.contains(context))
+							continue;
+						loading = context;
+					}
+					try {
+						context.assertLoaded();
+					}
+					catch (Exception e) {
+						Utils.log(e);
+					}
+					finally {
+						synchronized (ContextPrefetcher.this) {
+							loading = null;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops tracking a context, e.g. because it has been removed from the network.
+	 * @param context The context
+	 */
+	synchronized void remove(Context context) {
+		prefetched.remove(context);
+		stale.remove(context);
+	}
+
+	/**
+	 * Stops the background thread. Contexts being loaded finish loading.
+	 */
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @return The number of contexts loaded in the background
+	 */
+	synchronized long getPrefetchedContexts() {
+		return prefetchedContexts;
+	}
+
+	/**
+	 * @return The number of contexts that became current after being loaded in the background
+	 */
+	synchronized long getPrefetchHits() {
+		return prefetchHits;
+	}
+}
@@ -0,0 +1,89 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class implements the statistics of how the current context of a {@link ContextualEgoNetwork} changes over
+ * time, which are used to predict the contexts most likely to become current next. Statistics comprise the number
+ * of transitions between each pair of contexts and the number of times each context became current at each hour of
+ * the day. Contexts are identified by their serialization ids and statistics are saved alongside the network.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class ContextTransitions {
+	private HashMap<String, HashMap<String, Integer>> transitions = new HashMap<String, HashMap<String, Integer>>();
+	private HashMap<String, HashMap<String, Integer>> hourly = new HashMap<String, HashMap<String, Integer>>();
+
+	/**
+	 * Used in deserialization
+	 */
+	ContextTransitions() {}
+
+	private static void increment(HashMap<String, HashMap<String, Integer>> counts, String key, String contextId) {
+		HashMap<String, Integer> contextCounts = counts.get(key);
+		if (contextCounts == null)
+			counts.put(key, contextCounts = new HashMap<String, Integer>());
+		Integer count = contextCounts.get(contextId);
+		contextCounts.put(contextId, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Records that a context became current.
+	 * @param previousId The id of the previous current context, <code>null</code> if there was none
+	 * @param currentId The id of the new current context
+	 * @param hour The hour of the day (0-23) at which the context became current
+	 */
+	synchronized void record(String previousId, String currentId, int hour) {
+		if (previousId != null && !previousId.equals(currentId))
+			increment(transitions, previousId, currentId);
+		increment(hourly, Integer.toString(hour), currentId);
+	}
+
+	/**
+	 * Predicts the contexts most likely to become current after the given one, by adding the number of
+	 * transitions from the given context to the number of times each context became current at the given hour.
+	 * @param currentId The id of the current context
+	 * @param hour The hour of the day (0-23)
+	 * @param maxPredictions The maximum number of predicted contexts
+	 * @return The ids of predicted contexts other than the current one, from most to least likely
+	 */
+	synchronized ArrayList<String> predict(String currentId, int hour, int maxPredictions) {
+		final HashMap<String, Integer> scores = new HashMap<String, Integer>();
+		addScores(scores, transitions.get(currentId), currentId);
+		addScores(scores, hourly.get(Integer.toString(hour)), currentId);
+		ArrayList<String> predictions = new ArrayList<String>(scores.keySet());
+		Collections.sort(predictions, new Comparator<String>() {
+			@Override
+			public int compare(String contextId1, String contextId2) {
+				return Integer.compare(scores.get(contextId2), scores.get(contextId1));
+			}
+		});
+		return predictions.size() > maxPredictions ? new ArrayList<String>(predictions.subList(0, maxPredictions)) : predictions;
+	}
+
+	private static void addScores(HashMap<String, Integer> scores, HashMap<String, Integer> counts, String excludedId) {
+		if (counts == null)
+			return;
+		for (Map.Entry<String, Integer> count : counts.entrySet())
+			if (!count.getKey().equals(excludedId)) {
+				Integer score = scores.get(count.getKey());
+				scores.put(count.getKey(), (score == null ? 0 : score) + count.getValue());
+			}
+	}
+
+	/**
+	 * Removes all statistics involving a context, e.g. because it has been removed from the network.
+	 * @param contextId The id of the context
+	 */
+	synchronized void forget(String contextId) {
+		transitions.remove(contextId);
+		for (HashMap<String, Integer> counts : transitions.values())
+			counts.remove(contextId);
+		for (HashMap<String, Integer> counts : hourly.values())
+			counts.remove(contextId);
+	}
+}
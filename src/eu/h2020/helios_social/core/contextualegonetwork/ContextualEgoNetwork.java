@@ -2,6 +2,9 @@ package eu.h2020.helios_social.core.contextualegonetwork;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class implements a Contextual Ego Network, which is the conceptual model of our Heterogeneous Social Graph.
@@ -18,10 +21,24 @@ public class ContextualEgoNetwork {
     private ArrayList<Context> contexts;
     private ArrayList<Node> alters;
     private Context currentContext;
+    /**
+     * Serialization ids of the contexts that were loaded when the network was last saved
+     */
+    private ArrayList<String> loadedContexts;
     @Serializer.Serialization(enabled=false)
     private Serializer serializer;
     @Serializer.Serialization(enabled=false)
     private ArrayList<ContextualEgoNetworkListener> listeners = new ArrayList<ContextualEgoNetworkListener>();
+    @Serializer.Serialization(enabled=false)
+    private InteractionArena interactionArena = null;
+    @Serializer.Serialization(enabled=false)
+    private ContextCache contextCache = null;
+    @Serializer.Serialization(enabled=false)
+    private ContextPrefetcher contextPrefetcher = null;
+    /**
+     * Statistics of how the current context changes, which are used to prefetch contexts
+     */
+    private ContextTransitions contextTransitions;
     
     /**
      * Creates a ContextualEgoNetwork.
@@ -91,8 +108,26 @@ public class ContextualEgoNetwork {
      * @param egoName The name of the ego network's ego.
      * @param egoData The data with which to create the network's node.
      * @return the created or loaded contextual ego network
+     * @see #createOrLoad(Storage, String, Object, int)
      */
     public static ContextualEgoNetwork createOrLoad(Storage storage, String egoName, Object egoData) {
+    	return createOrLoad(storage, egoName, egoData, 1);
+    }
+    
+    /**
+     * Instantiates a ContextualEgoNetwork at the given storage path  by creating a new ego node with the given data.
+     * Loads a previously saved one if such a node exists. If more than one loading threads are used, 
+     * the files of the ego, the alters and the contexts that were loaded when the network was last saved
+     * are read in parallel (the latter contexts are also loaded). The network is returned only after all loading is complete.
+     * @param internalStoragePath The path to the internal storage location (s)
+     * @param egoName The name of the ego network's ego.
+     * @param egoData The data with which to create the network's node.
+     * @param loadingThreads The maximum number of files to read in parallel (1 to load files sequentially).
+     * @return the created or loaded contextual ego network
+     */
+    public static ContextualEgoNetwork createOrLoad(Storage storage, String egoName, Object egoData, int loadingThreads) {
+    	if(loadingThreads<1)
+    		Utils.error(new IllegalArgumentException("At least one loading thread is needed"));
     	if(storage==null)
     		Utils.error(new IllegalArgumentException("null storage"));
     	if(egoName==null)
@@ -105,6 +140,26 @@ public class ContextualEgoNetwork {
     		contextualEgoNetwork.serializer = serializer;
 	    	serializer.registerId(contextualEgoNetwork, "CEN");
 	    	serializer.reload(contextualEgoNetwork);
+	    	if(serializer.hasSegmentedStore("nodes"))
+	    		serializer.useSegmentedStore(Node.class, "nodes");
+	    	ArrayList<Context> preloadedContexts = new ArrayList<Context>();
+	    	if(loadingThreads>1) {
+	    		ArrayList<Object> prefetched = new ArrayList<Object>();
+	    		prefetched.add(contextualEgoNetwork.ego);
+	    		prefetched.addAll(contextualEgoNetwork.alters);
+	    		if(contextualEgoNetwork.loadedContexts!=null)
+		    		for(Context context : contextualEgoNetwork.contexts)
+		    			if(contextualEgoNetwork.loadedContexts.contains(serializer.getRegisteredId(context)))
+		    				preloadedContexts.add(context);
+	    		prefetched.addAll(preloadedContexts);
+	    		ExecutorService executor = Executors.newFixedThreadPool(Math.min(loadingThreads, prefetched.size()));
+	    		try {
+	    			serializer.prefetch(prefetched, executor);
+	    		}
+	    		finally {
+	    			executor.shutdown();
+	    		}
+	    	}
 	    	serializer.reload(contextualEgoNetwork.ego);
 	    	for(Node alter : contextualEgoNetwork.alters)
 	    		serializer.reload(alter);
@@ -114,6 +169,9 @@ public class ContextualEgoNetwork {
 	    		if(!context.isLoaded())
 	    			serializer.setSavePermission(context, false);
 	    	}
+	    	for(Context context : preloadedContexts)
+	    		context.load();
+	    	serializer.clearPrefetched();
     	}
     	else {
     		Node ego = new Node(null, egoName, egoData);
@@ -146,6 +204,121 @@ public class ContextualEgoNetwork {
     	return contextualEgoNetwork;
     }*/
     
+    /**
+     * Makes the network save all of its nodes in a single segmented store instead of one file per node.
+     * Only the store segments that contain modified nodes are written when saving, and loading reads all nodes
+     * at once. Existing node files are moved into the store on the next {@link #save()}. Once a network
+     * uses the node store, it is automatically used whenever the network is loaded.
+     */
+    public void useNodeStore() {
+    	serializer.useSegmentedStore(Node.class, "nodes");
+    }
+    
+    /**
+     * Enables or disables keeping the interactions of edges in off-heap memory, which is allocated from a pool
+     * owned by the network. This reduces the heap used by interaction histories, at the cost of creating
+     * {@link Interaction} objects (and deserializing their data) whenever they are retrieved. Retrieved interactions
+     * are then read-only copies: each retrieval creates different objects and changes to their data are not saved,
+     * so this should be enabled only if interaction data are not modified after interactions are created. The setting is not
+     * saved and applies to interactions loaded or created afterwards. Off-heap memory is returned to the pool
+     * when contexts are unloaded with {@link Context#cleanup()}.
+     * @param enabled Whether interactions are kept off-heap (default is <code>false</code>)
+     * @see Context#getOffHeapInteractionBytes()
+     */
+    public void setOffHeapInteractions(boolean enabled) {
+    	if(enabled && interactionArena==null)
+    		interactionArena = new InteractionArena();
+    	else if(!enabled)
+    		interactionArena = null;
+    }
+    
+    /**
+     * @return Whether interactions are kept in off-heap memory
+     * @see #setOffHeapInteractions(boolean)
+     */
+    public boolean isOffHeapInteractions() {
+    	return interactionArena!=null;
+    }
+    
+    /**
+     * Retrieves the number of off-heap bytes reserved for interactions by the network, including memory
+     * that has been released by unloaded contexts and is kept for reuse.
+     * @return The number of reserved bytes, zero if interactions are not kept off-heap
+     * @see #setOffHeapInteractions(boolean)
+     */
+    public long getOffHeapReservedBytes() {
+    	return interactionArena==null ? 0 : interactionArena.getReservedBytes();
+    }
+    
+    /**
+     * Sets a budget for the contexts kept loaded in memory. Once a context is loaded (e.g. on demand by accessing it)
+     * and the budget is exceeded, the least recently accessed contexts are saved and unloaded with {@link Context#cleanup()},
+     * except for the current context. Memory usage is a rough estimate based on the number of edges and interactions
+     * of loaded contexts. The budget is not saved and contexts that are already loaded count against it.
+     * @param maxLoadedContexts The maximum number of loaded contexts, zero for no limit
+     * @param maxMemoryBytes The maximum estimated memory of loaded contexts, zero for no limit
+     * @see #getContextCacheHits()
+     * @see #getContextCacheMisses()
+     * @see #getContextCacheEvictions()
+     */
+    public void setContextCacheBudget(int maxLoadedContexts, long maxMemoryBytes) {
+    	if(maxLoadedContexts<0 || maxMemoryBytes<0) {
+    		Utils.error(new IllegalArgumentException("Budget cannot be negative"));
+    		return;
+    	}
+    	if(maxLoadedContexts==0 && maxMemoryBytes==0) {
+    		contextCache = null;
+    		return;
+    	}
+    	if(contextCache!=null) {
+    		contextCache.setBudget(maxLoadedContexts, maxMemoryBytes);
+    		return;
+    	}
+    	ContextCache cache = new ContextCache(this, maxLoadedContexts, maxMemoryBytes);
+    	for(Context context : contexts)
+    		if(context.isLoaded())
+    			cache.add(context);
+    	contextCache = cache;
+    }
+    
+    /**
+     * @return The number of accesses to contexts that were already loaded, since a budget was set
+     * @see #setContextCacheBudget(int, long)
+     */
+    public long getContextCacheHits() {
+    	return contextCache==null ? 0 : contextCache.getHits();
+    }
+    
+    /**
+     * @return The number of accesses to contexts that needed to be loaded, since a budget was set
+     * @see #setContextCacheBudget(int, long)
+     */
+    public long getContextCacheMisses() {
+    	return contextCache==null ? 0 : contextCache.getMisses();
+    }
+    
+    /**
+     * @return The number of contexts unloaded to meet the budget, since a budget was set
+     * @see #setContextCacheBudget(int, long)
+     */
+    public long getContextCacheEvictions() {
+    	return contextCache==null ? 0 : contextCache.getEvictions();
+    }
+    
+    /**
+     * @return The cache of loaded contexts, <code>null</code> if no budget is set
+     */
+    ContextCache getContextCache() {
+    	return contextCache;
+    }
+    
+    /**
+     * @return The arena from which off-heap interactions are allocated, <code>null</code> if interactions are not kept off-heap
+     */
+    InteractionArena getInteractionArena() {
+    	return interactionArena;
+    }
+    
     /**
      * Retrieves the Serializer responsible for saving and loading the ego network and its entities.
      * @return The {@link Serializer} object used to save and load data in the
@@ -159,11 +332,49 @@ public class ContextualEgoNetwork {
      * Makes the {@link #getSerializer()} save the contextual ego network. This
      * includes all explicitly serializeable objects, namely the contexts and nodes.
      * Only {@link Context#isLoaded()} contexts are saved, since otherwise they would 
-     * have already been saved with {@link Context#cleanup()}.
+     * have already been saved with {@link Context#cleanup()}. All files are written,
+     * regardless of whether their objects are known to have been modified, so that changes
+     * the network cannot track (e.g. to objects returned by {@link Node#getData()},
+     * {@link Context#getData()} or {@link Interaction#getData()}) are also saved.
+     * @see #saveDirty()
      */
 	public void save() {
+		save(false);
+	}
+	
+    /**
+     * Makes the {@link #getSerializer()} save only the objects of the contextual ego network
+     * that have been modified since they were last saved or loaded, as tracked through
+     * {@link Serializer#markDirty(Object)}. Modifications are tracked for the network's structure
+     * (e.g. contexts, nodes, edges and interactions), but not for data objects, which may have
+     * been modified through references kept by callers. Callers that modify data objects should either
+     * mark their owners with {@link CrossModuleComponent#markDirty()} or {@link Serializer#markDirty(Object)},
+     * or use {@link #save()}. The number of skipped files and bytes can be retrieved through
+     * {@link Serializer#getLastSkippedFiles()} and {@link Serializer#getLastSkippedBytes()}.
+     */
+	public void saveDirty() {
+		save(true);
+	}
+	
+	private void save(boolean onlyDirty) {
 		Serializer serializer = getSerializer();
-		serializer.saveAllRegistered();
+		ArrayList<String> currentlyLoadedContexts = new ArrayList<String>();
+		for(Context context : contexts)
+			if(context.isLoaded())
+				currentlyLoadedContexts.add(serializer.getRegisteredId(context));
+		if(!currentlyLoadedContexts.equals(loadedContexts)) {
+			loadedContexts = currentlyLoadedContexts;
+			serializer.markDirty(this);
+		}
+		ArrayList<ArrayList<String>> offHeapEdgeIds = new ArrayList<ArrayList<String>>();
+		for(Context context : contexts)
+			offHeapEdgeIds.add(context.isLoaded() ? context.attachOffHeapInteractions(onlyDirty) : new ArrayList<String>());
+		if(onlyDirty)
+			serializer.saveAllDirty();
+		else
+			serializer.saveAllRegistered();
+		for(int i=0;i<contexts.size();i++)
+			contexts.get(i).detachOffHeapInteractions(offHeapEdgeIds.get(i));
 		for(Context context : contexts)
 			if(context.isLoaded())
 				for(ContextualEgoNetworkListener listener : listeners)
@@ -178,7 +389,21 @@ public class ContextualEgoNetwork {
 		for(Context context : contexts)
 			context.cleanup();
 	}
-    
+
+	/**
+	 * Saves the contextual ego network with {@link #save()}, stops prefetching contexts and closes its serializer,
+	 * which waits until all files queued by write-behind persistence have been written. The network can be loaded again
+	 * from its storage, but should not be used after being closed. The storage is not closed, since it may be shared.
+	 * @see Serializer#setWriteBehind(int)
+	 * @see Serializer#close()
+	 * @see Storage#close()
+	 */
+	public void close() {
+		save();
+		setContextPrefetching(0);
+		getSerializer().close();
+	}
+
     /**
      * The default method to create a new context in a ContextualEgoNetwork.
      * @param data The data that the context should hold.
@@ -187,6 +412,7 @@ public class ContextualEgoNetwork {
     protected Context createContext(Object data) {
     	Context context = new Context(this, data);
     	contexts.add(context);
+    	serializer.markDirty(this);
 		for(ContextualEgoNetworkListener listener : listeners)
 			listener.onCreateContext(context);
     	return context;
@@ -225,8 +451,8 @@ public class ContextualEgoNetwork {
 	 * a context does <i>not</i> remove any nodes from the network, even if those are not currently
 	 * referenced by other contexts (because future contexts may use those nodes). However,
 	 * it <i>removes the context's saved file from storage</i>. If the removed context is current context,
-	 * the latter is also set to null. To avoid catastrophic missing references due to neglected saving, the network is 
-     * <b>forcefully saved</b> after removing the node by calling its {@link #save()} method.
+	 * the latter is also set to null. To avoid catastrophic missing references due to neglected saving, the network's
+     * modifications are <b>forcefully saved</b> after removing the context by calling its {@link #saveDirty()} method.
      * 
      * @param context The context to remove.
      */
@@ -239,8 +465,15 @@ public class ContextualEgoNetwork {
 			currentContext = null;
     	contexts.remove(context);
     	context.removeFromStorage();
+    	if(contextCache!=null)
+    		contextCache.remove(context);
+    	if(contextPrefetcher!=null)
+    		contextPrefetcher.remove(context);
+    	if(contextTransitions!=null)
+    		contextTransitions.forget(context.getSerializationId());
     	serializer.unregister(context);
-    	save();
+    	serializer.markDirty(this);
+    	saveDirty();
     }
     
     /**
@@ -258,7 +491,81 @@ public class ContextualEgoNetwork {
     public void setCurrent(Context context) {
         if(context==null) Utils.error(new NullPointerException());
         if(!contexts.contains(context)) {Utils.error("Context does not reside in the ego network (has been probably removed)"); return;}
+    	Context previousContext = currentContext;
     	this.currentContext = context;
+    	if(contextTransitions==null)
+    		contextTransitions = new ContextTransitions();
+    	contextTransitions.record(previousContext==null ? null : previousContext.getSerializationId(),
+    			context.getSerializationId(), ContextPrefetcher.getCurrentHour());
+    	serializer.markDirty(this);
+    	if(contextPrefetcher!=null)
+    		contextPrefetcher.onSetCurrent(context, contextTransitions);
+    }
+    
+    /**
+     * Loads the given contexts by first starting to read all of their files on the I/O threads of the network's storage
+     * (see {@link Serializer#prefetchAsync(Collection)}) and then loading each context once its file has been read,
+     * so that deserializing contexts overlaps with reading the files of the next ones. Contexts that are already
+     * loaded are skipped. This returns once all contexts have been loaded.
+     * @param contexts The contexts to load
+     * @see Context#load()
+     */
+    public void loadContexts(Collection<Context> contexts) {
+    	ArrayList<Context> unloadedContexts = new ArrayList<Context>();
+    	for(Context context : contexts)
+    		if(!context.isLoaded())
+    			unloadedContexts.add(context);
+    	if(unloadedContexts.isEmpty())
+    		return;
+    	serializer.prefetchAsync(unloadedContexts);
+    	try {
+	    	for(Context context : unloadedContexts)
+	    		context.assertLoaded();
+    	}
+    	finally {
+    		// discard the files of contexts loaded by other threads in the meantime
+    		serializer.clearPrefetched();
+    	}
+    }
+    
+    /**
+     * Enables or disables the prefetching of contexts. When enabled, the network learns which contexts tend to
+     * become current after each context and at each hour of the day from previous {@link #setCurrent(Context)} calls
+     * (these statistics are always gathered and are saved alongside the network). Whenever the current context
+     * changes, the contexts most likely to become current next are loaded by a background thread, so that
+     * switching to them does not block on loading them. Contexts prefetched but no longer predicted
+     * are unloaded with {@link Context#cleanup()}. The setting is not saved.
+     * @param maxPrefetchedContexts The maximum number of contexts kept loaded by prefetching before becoming current,
+     *  zero to disable prefetching (default)
+     * @see #getPrefetchedContexts()
+     * @see #getPrefetchHits()
+     */
+    public void setContextPrefetching(int maxPrefetchedContexts) {
+    	if(maxPrefetchedContexts<0) {
+    		Utils.error(new IllegalArgumentException("The number of prefetched contexts cannot be negative"));
+    		return;
+    	}
+    	if(contextPrefetcher!=null)
+    		contextPrefetcher.shutdown();
+    	contextPrefetcher = maxPrefetchedContexts==0 ? null : new ContextPrefetcher(this, maxPrefetchedContexts);
+    }
+    
+    /**
+     * @return The number of contexts loaded by prefetching, since prefetching was last enabled
+     * @see #setContextPrefetching(int)
+     */
+    public long getPrefetchedContexts() {
+    	return contextPrefetcher==null ? 0 : contextPrefetcher.getPrefetchedContexts();
+    }
+    
+    /**
+     * Retrieves the number of prefetched contexts that became current, since prefetching was last enabled.
+     * Dividing this by {@link #getPrefetchedContexts()} yields the hit rate of prefetching.
+     * @return The number of prefetched contexts that became current
+     * @see #setContextPrefetching(int)
+     */
+    public long getPrefetchHits() {
+    	return contextPrefetcher==null ? 0 : contextPrefetcher.getPrefetchHits();
     }
     
     /**
@@ -314,6 +621,7 @@ public class ContextualEgoNetwork {
     		node = new Node(this, nodeId, data);
     		serializer.registerId(node, node.getId());
     		alters.add(node);
+    		serializer.markDirty(this);
     		for(ContextualEgoNetworkListener listener : listeners)
     			listener.onCreateNode(node);
     	}
@@ -323,8 +631,8 @@ public class ContextualEgoNetwork {
     /**
      * Removes a node from the contextual ego network given its serialization id, which is the same as {@link Node#getId()}.
      * This includes removing the node from both the list of alters, as well as potentially loading any unloaded all contexts
-     * (if so, they are unloaded afterwards). To avoid catastrophic missing references due to neglected saving, the network is 
-     * <b>forcefully saved</b> after removing the node by calling its {@link #save()} method.
+     * (if so, they are unloaded afterwards). To avoid catastrophic missing references due to neglected saving, the network's
+     * modifications are <b>forcefully saved</b> after removing the node by calling its {@link #saveDirty()} method.
      * If no node with the given id is part of the network, none of the above happens. 
      * @param nodeId The serialization id of the node to remove.
      */
@@ -344,7 +652,8 @@ public class ContextualEgoNetwork {
 	    	alters.remove(node);
 	    	serializer.removeFromStorage(node);
 	    	serializer.unregister(node);
-	    	save();
+	    	serializer.markDirty(this);
+	    	saveDirty();
     	}
     }
 }
@@ -37,6 +37,26 @@ public abstract class CrossModuleComponent {
     	return contextualEgoNetwork;
     }
     
+    /**
+     * Retrieves the component whose storage file contains this component's data.
+     * @return The component itself, unless overridden by components saved alongside others.
+     */
+    protected CrossModuleComponent getStorageOwner() {
+    	return this;
+    }
+    
+    /**
+     * Marks the file this component is stored in as modified, so that it is written by the next
+     * {@link ContextualEgoNetwork#save()}. This is automatically called by methods that modify the
+     * component, including {@link #getOrCreateInstance(String, Class)}, but needs to be called manually
+     * if instances obtained by the latter are modified after references to them are kept elsewhere.
+     */
+    public void markDirty() {
+    	CrossModuleComponent owner = getStorageOwner();
+    	if(owner!=null && owner.getContextualEgoNetwork()!=null)
+    		owner.getContextualEgoNetwork().getSerializer().markDirty(owner);
+    }
+    
 
     /**
      * Checks that this component belongs to the given contextual ego network.
@@ -85,6 +105,9 @@ public abstract class CrossModuleComponent {
      * - If modifications of created instances occur, these <i>do not</i> trigger any listener callbacks of the contextual ego network.
      * For example, this means that changes to the created instances are not saved by
      * {@link eu.h2020.helios_social.core.contextualegonetwork.listeners.RecoveryListener}.
+     * <br>
+     * - Calling this method marks the component as modified (see {@link #markDirty()}), since the returned instance is
+     * typically modified afterwards.
      * @param <ModuleObjectDataType> The implicitly understood type of the returned object (is automatically resolved to the same as the type of the given class)
      * @param moduleName A custom name to reference the class instance by future calls of this method.
      * @param moduleClass The given class (e.g. that stores the node's data needed by a HELIOS module).
@@ -94,6 +117,7 @@ public abstract class CrossModuleComponent {
 	public <ModuleObjectDataType> ModuleObjectDataType getOrCreateInstance(String moduleName, Class<ModuleObjectDataType> moduleClass) {
     	if(moduleData==null)
     		moduleData = new HashMap<String, Object>();
+    	markDirty();
     	Object found = moduleData.get(moduleName);
     	if(found==null) {
     		try {
@@ -130,6 +154,7 @@ public abstract class CrossModuleComponent {
 	public <ModuleObjectDataType> ModuleObjectDataType getOrCreateInstance(String moduleName, Supplier<ModuleObjectDataType> moduleClassSupplier) {
     	if(moduleData==null)
     		moduleData = new HashMap<String, Object>();
+    	markDirty();
     	Object found = moduleData.get(moduleName);
     	if(found==null) {
     		try {
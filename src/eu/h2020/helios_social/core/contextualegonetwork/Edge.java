@@ -4,7 +4,10 @@ import java.util.ArrayList;
 
 /**
  * This class implements an edge of the Social Graph. An edge, in a context, can link the ego of the Contextual Ego Network to one of the alters.
- * Each edge comprises multiple interactions.
+ * Each edge comprises multiple interactions. Interactions are stored separately from the edge's context and are
+ * loaded only when first accessed. If {@link ContextualEgoNetwork#setOffHeapInteractions(boolean)} is enabled,
+ * loaded interactions are kept in off-heap memory and {@link Interaction} objects are only created when retrieved.
+ * Such objects are read-only copies; changes to their data are not saved.
  * 
  * @author Emmanouil Krasanakis (maniospas@iti.gr)
  * @author Barbara Guidi (guidi@di.unipi.it)
@@ -24,9 +27,15 @@ public final class Edge extends CrossModuleComponent {
      */
     private Context context;
     /**
-     * The list of interactions
+     * The list of interactions (<code>null</code> if not loaded yet)
      */
+    @Serializer.Serialization(enabled=false)
     private ArrayList<Interaction> interactions;
+    /**
+     * The off-heap interactions, used instead of the list of interactions (<code>null</code> if not used)
+     */
+    @Serializer.Serialization(enabled=false)
+    private InteractionBuffer interactionBuffer;
 
     /**
      * Constructor method.
@@ -44,7 +53,11 @@ public final class Edge extends CrossModuleComponent {
         this.src = src;
         this.dst = dst;
         this.context = context;
-        interactions = new ArrayList<Interaction>();
+        InteractionArena arena = contextualEgoNetwork.getInteractionArena();
+        if(arena!=null)
+        	interactionBuffer = new InteractionBuffer(arena);
+        else
+        	interactions = new ArrayList<Interaction>();
     }
 
     /**
@@ -102,6 +115,11 @@ public final class Edge extends CrossModuleComponent {
     public Context getContext() {
         return context;
     }
+    
+    @Override
+    protected CrossModuleComponent getStorageOwner() {
+    	return context;
+    }
 
     /**
      * Adds a new interaction with no duration on this edge at the current timestamp.
@@ -121,19 +139,163 @@ public final class Edge extends CrossModuleComponent {
      */
     public Interaction addInteraction(long timestamp, long duration, Object data) {
         if(timestamp < 0 || duration < 0) Utils.error(new IllegalArgumentException("Timestamp and duration cannot be negative"));
+        context.assertInteractionsLoaded();
         Interaction interaction = new Interaction(this, timestamp, duration, data);
-        interactions.add(interaction);
+        if(interactionBuffer!=null)
+        	interactionBuffer.add(timestamp, duration, getContext().getContextualEgoNetwork().getSerializer().serializeToString(data));
+        else
+        	interactions.add(interaction);
+        context.recordInteraction(interaction);
         for(ContextualEgoNetworkListener listener : getContext().getContextualEgoNetwork().getListeners())
         	listener.onCreateInteraction(interaction);
         return interaction;
     }
 
     /**
-     * Retrieves a shallow copy of the edge's interaction list.
+     * Adds an interaction without notifying listeners or marking the context as modified.
+     * This is used by the context to replay its delta file.
+     * @param timestamp The start timestamp of the interaction
+     * @param duration The duration of the interaction
+     * @param data The data stored in the interaction
+     */
+    void restoreInteraction(long timestamp, long duration, Object data) {
+        context.assertInteractionsLoaded();
+        if(interactionBuffer!=null)
+        	interactionBuffer.add(timestamp, duration, getContext().getContextualEgoNetwork().getSerializer().serializeToString(data));
+        else
+        	interactions.add(new Interaction(this, timestamp, duration, data));
+    }
+
+    /**
+     * Checks whether the edge's interactions have been loaded in memory.
+     * @return Whether the interactions are loaded
+     */
+    boolean isInteractionsLoaded() {
+        return interactions!=null || interactionBuffer!=null;
+    }
+
+    /**
+     * Checks whether the edge's interactions are kept in off-heap memory.
+     * @return Whether the interactions are loaded in an {@link InteractionBuffer}
+     */
+    boolean isInteractionsOffHeap() {
+        return interactionBuffer!=null;
+    }
+
+    /**
+     * Retrieves the edge's interaction list, as opposed to a copy of it.
+     * @return The interaction list, <code>null</code> if not loaded or if interactions are kept off-heap
+     */
+    ArrayList<Interaction> getInteractionList() {
+        return interactions;
+    }
+
+    /**
+     * Sets the edge's interactions once they are loaded, or marks them as not loaded yet.
+     * @param interactions The interaction list, <code>null</code> to mark interactions as not loaded
+     */
+    void setInteractionList(ArrayList<Interaction> interactions) {
+        releaseInteractionBuffer();
+        this.interactions = interactions;
+        if(interactions!=null)
+            for(Interaction interaction : interactions)
+                interaction.setEdge(this);
+    }
+
+    /**
+     * Moves the edge's loaded interactions to an off-heap buffer allocated from the given arena.
+     * @param arena The arena of the edge's contextual ego network
+     */
+    void moveInteractionsOffHeap(InteractionArena arena) {
+        if(interactions==null)
+            return;
+        Serializer serializer = getContext().getContextualEgoNetwork().getSerializer();
+        interactionBuffer = new InteractionBuffer(arena);
+        for(Interaction interaction : interactions)
+            interactionBuffer.add(interaction.getStartTime(), interaction.getDuration(), serializer.serializeToString(interaction.getData()));
+        interactions = null;
+    }
+
+    /**
+     * Moves the edge's off-heap interactions back to a list of interactions, releasing the off-heap memory.
+     */
+    void moveInteractionsOnHeap() {
+        if(interactionBuffer==null)
+            return;
+        ArrayList<Interaction> list = createInteractions(0, interactionBuffer.size());
+        releaseInteractionBuffer();
+        interactions = list;
+    }
+
+    /**
+     * Returns the memory of the edge's off-heap interactions to the arena it was allocated from.
+     * Interactions are marked as not loaded afterwards.
+     * @return Whether the edge's interactions were kept off-heap
+     */
+    boolean releaseInteractionBuffer() {
+        if(interactionBuffer==null)
+            return false;
+        interactionBuffer.release();
+        interactionBuffer = null;
+        return true;
+    }
+
+    /**
+     * @return The number of off-heap bytes allocated for the edge's interactions
+     */
+    long getOffHeapInteractionBytes() {
+        return interactionBuffer==null?0:interactionBuffer.getAllocatedBytes();
+    }
+
+    /**
+     * Creates interaction objects for a range of the edge's off-heap interactions, in which case their data are deserialized.
+     * @param from The index of the first interaction (inclusive)
+     * @param to The index of the last interaction (exclusive)
+     * @return A list of interactions
+     */
+    private ArrayList<Interaction> createInteractions(int from, int to) {
+        Serializer serializer = getContext().getContextualEgoNetwork().getSerializer();
+        ArrayList<Interaction> list = new ArrayList<Interaction>(to-from);
+        for(int i=from;i<to;i++)
+            list.add(new Interaction(this, interactionBuffer.getStartTime(i), interactionBuffer.getDuration(i),
+                    serializer.deserializeFromString(interactionBuffer.getSerializedData(i))));
+        return list;
+    }
+
+    /**
+     * Retrieves a shallow copy of the edge's interaction list. If interactions are kept off-heap,
+     * new interaction objects are created by each call instead. These are read-only copies of the stored
+     * interactions, so that retrieving the same interaction twice yields different objects and changes
+     * to the data of the retrieved interactions are neither reflected in the edge nor saved.
      * @return A list of interactions.
      */
     public ArrayList<Interaction> getInteractions() {
+    	context.assertInteractionsLoaded();
+    	if(interactionBuffer!=null)
+    		return createInteractions(0, interactionBuffer.size());
     	return new ArrayList<Interaction>(interactions);
     }
+
+    /**
+     * Retrieves the edge's interactions that started within a given time range. If interactions are kept
+     * off-heap, these are read-only copies, as in {@link #getInteractions()}.
+     * @param fromTimestamp The earliest start timestamp (inclusive)
+     * @param toTimestamp The latest start timestamp (exclusive)
+     * @return A list of interactions.
+     */
+    public ArrayList<Interaction> getInteractions(long fromTimestamp, long toTimestamp) {
+    	context.assertInteractionsLoaded();
+    	ArrayList<Interaction> found = new ArrayList<Interaction>();
+    	if(interactionBuffer!=null) {
+    		for(int i=0;i<interactionBuffer.size();i++)
+    			if(interactionBuffer.getStartTime(i)>=fromTimestamp && interactionBuffer.getStartTime(i)<toTimestamp)
+    				found.addAll(createInteractions(i, i+1));
+    		return found;
+    	}
+    	for(Interaction interaction : interactions)
+    		if(interaction.getStartTime()>=fromTimestamp && interaction.getStartTime()<toTimestamp)
+    			found.add(interaction);
+    	return found;
+    }
     
 }
@@ -24,8 +24,9 @@ public final class Interaction {
      */
     private Object data;
     /**
-     * The interaction's parent edge
+     * The interaction's parent edge (this is restored when loading the edge's interactions)
      */
+    @Serializer.Serialization(enabled=false)
     private Edge edge;
 
     /**
@@ -48,6 +49,14 @@ public final class Interaction {
     protected Interaction()
     {}
 
+    /**
+     * Attaches the interaction to its edge after loading it.
+     * @param edge The edge the interaction belongs to
+     */
+    void setEdge(Edge edge) {
+    	this.edge = edge;
+    }
+
     /**
      * Retrieves the edge the interaction belongs to.
      * @return The edge.
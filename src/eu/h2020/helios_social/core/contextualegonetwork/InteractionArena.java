@@ -0,0 +1,91 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * This class implements a pool of off-heap memory from which a {@link ContextualEgoNetwork} allocates
+ * the {@link InteractionBuffer}s of its edges. Memory is reserved from the operating system in chunks of
+ * {@link #CHUNK_SIZE} bytes, which are split into blocks whose sizes are powers of two. Released blocks are
+ * kept in per-size free lists and are reused by subsequent allocations instead of reserving new memory.
+ * Blocks larger than a chunk are reserved individually and are not pooled.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class InteractionArena {
+	static final int MIN_BLOCK_SIZE = 256;
+	static final int CHUNK_SIZE = 1 << 20;
+
+	private final ArrayList<ArrayList<ByteBuffer>> freeBlocks = new ArrayList<ArrayList<ByteBuffer>>();
+	private ByteBuffer chunk = null;
+	private long reservedBytes = 0;
+	private long usedBytes = 0;
+
+	InteractionArena() {
+		for (int size = MIN_BLOCK_SIZE; size <= CHUNK_SIZE; size *= 2)
+			freeBlocks.add(new ArrayList<ByteBuffer>());
+	}
+
+	private static int getSizeClass(int capacity) {
+		return Integer.numberOfTrailingZeros(capacity) - Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE);
+	}
+
+	/**
+	 * Allocates a block of off-heap memory.
+	 * @param minCapacity The minimum number of bytes the block should hold
+	 * @return A block whose capacity is the smallest power of two that is at least the given capacity
+	 *  and {@link #MIN_BLOCK_SIZE}, with its position at zero and its limit at its capacity
+	 */
+	synchronized ByteBuffer allocate(int minCapacity) {
+		int capacity = MIN_BLOCK_SIZE;
+		while (capacity < minCapacity)
+			capacity *= 2;
+		usedBytes += capacity;
+		if (capacity > CHUNK_SIZE) {
+			reservedBytes += capacity;
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		ArrayList<ByteBuffer> free = freeBlocks.get(getSizeClass(capacity));
+		if (!free.isEmpty()) {
+			ByteBuffer block = free.remove(free.size() - 1);
+			block.clear();
+			return block;
+		}
+		if (chunk == null || chunk.remaining() < capacity) {
+			chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+			reservedBytes += CHUNK_SIZE;
+		}
+		ByteBuffer view = chunk.duplicate();
+		view.limit(chunk.position() + capacity);
+		chunk.position(chunk.position() + capacity);
+		return view.slice();
+	}
+
+	/**
+	 * Returns a block obtained by {@link #allocate(int)} to the pool. The block should not be used afterwards.
+	 * @param block The block to release
+	 */
+	synchronized void release(ByteBuffer block) {
+		usedBytes -= block.capacity();
+		if (block.capacity() > CHUNK_SIZE) {
+			// left to be reclaimed by the garbage collector
+			reservedBytes -= block.capacity();
+			return;
+		}
+		freeBlocks.get(getSizeClass(block.capacity())).add(block);
+	}
+
+	/**
+	 * @return The number of off-heap bytes reserved by the arena, including pooled blocks that are not in use
+	 */
+	synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	/**
+	 * @return The number of off-heap bytes in blocks that are currently allocated
+	 */
+	synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+}
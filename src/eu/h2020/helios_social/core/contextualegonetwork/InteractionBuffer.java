@@ -0,0 +1,122 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * This class implements the off-heap storage of an {@link Edge}'s interactions, which is used instead of
+ * {@link Interaction} objects when {@link ContextualEgoNetwork#setOffHeapInteractions(boolean)} is enabled.
+ * Each interaction is a fixed-size record comprising its start timestamp, its duration and a reference to its
+ * serialized data, whereas serialized data are kept in a separate payload block. Both blocks are allocated
+ * from the network's {@link InteractionArena} and are replaced by blocks of double capacity when full.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class InteractionBuffer {
+	static final int RECORD_SIZE = 24;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final InteractionArena arena;
+	private ByteBuffer records = null;
+	private ByteBuffer payloads = null;
+	private int size = 0;
+	private int payloadSize = 0;
+
+	/**
+	 * @param arena The arena from which to allocate memory
+	 */
+	InteractionBuffer(InteractionArena arena) {
+		this.arena = arena;
+	}
+
+	private ByteBuffer ensureCapacity(ByteBuffer block, int used, int required) {
+		if (block == null ? required == 0 : block.capacity() >= required)
+			return block;
+		ByteBuffer grown = arena.allocate(block == null ? required : Math.max(required, block.capacity() * 2));
+		if (block != null) {
+			ByteBuffer contents = block.duplicate();
+			contents.position(0);
+			contents.limit(used);
+			grown.put(contents);
+			arena.release(block);
+		}
+		return grown;
+	}
+
+	/**
+	 * Appends an interaction.
+	 * @param timestamp The start timestamp of the interaction
+	 * @param duration The duration of the interaction
+	 * @param serializedData The interaction's data as obtained by {@link Serializer#serializeToString(Object)}
+	 */
+	void add(long timestamp, long duration, String serializedData) {
+		byte[] payload = serializedData.getBytes(UTF8);
+		records = ensureCapacity(records, size * RECORD_SIZE, (size + 1) * RECORD_SIZE);
+		payloads = ensureCapacity(payloads, payloadSize, payloadSize + payload.length);
+		int position = size * RECORD_SIZE;
+		records.putLong(position, timestamp);
+		records.putLong(position + 8, duration);
+		records.putInt(position + 16, payloadSize);
+		records.putInt(position + 20, payload.length);
+		for (int i = 0; i < payload.length; i++)
+			payloads.put(payloadSize + i, payload[i]);
+		payloadSize += payload.length;
+		size++;
+	}
+
+	/**
+	 * @return The number of interactions
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @param index The index of an interaction
+	 * @return The start timestamp of the interaction
+	 */
+	long getStartTime(int index) {
+		return records.getLong(index * RECORD_SIZE);
+	}
+
+	/**
+	 * @param index The index of an interaction
+	 * @return The duration of the interaction
+	 */
+	long getDuration(int index) {
+		return records.getLong(index * RECORD_SIZE + 8);
+	}
+
+	/**
+	 * @param index The index of an interaction
+	 * @return The interaction's serialized data
+	 */
+	String getSerializedData(int index) {
+		int offset = records.getInt(index * RECORD_SIZE + 16);
+		byte[] payload = new byte[records.getInt(index * RECORD_SIZE + 20)];
+		for (int i = 0; i < payload.length; i++)
+			payload[i] = payloads.get(offset + i);
+		return new String(payload, UTF8);
+	}
+
+	/**
+	 * @return The number of off-heap bytes allocated for the interactions
+	 */
+	long getAllocatedBytes() {
+		return (records == null ? 0 : records.capacity()) + (payloads == null ? 0 : payloads.capacity());
+	}
+
+	/**
+	 * Returns the allocated memory to the arena. The buffer is empty afterwards.
+	 */
+	void release() {
+		if (records != null)
+			arena.release(records);
+		if (payloads != null)
+			arena.release(payloads);
+		records = null;
+		payloads = null;
+		size = 0;
+		payloadSize = 0;
+	}
+}
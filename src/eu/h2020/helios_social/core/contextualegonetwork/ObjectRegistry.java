@@ -0,0 +1,287 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class implements the registry of objects to serialization ids used by the {@link Serializer}.
+ * Objects are looked up by identity, so that neither their {@link Object#hashCode()} nor their
+ * {@link Object#equals(Object)} implementations are ever called, and are only weakly referenced.
+ * This way, registered objects that are no longer used anywhere else (e.g. discarded networks) can be
+ * garbage collected, in which case their registrations are silently removed.
+ * <p>
+ * The registry is thread-safe. Lookups only acquire a shared read lock, so that they proceed concurrently
+ * with each other and are blocked only while registrations are being modified.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class ObjectRegistry {
+	/**
+	 * A registration of an object to an id. Registrations with the same identity hash
+	 * bucket are chained through their <code>next</code> field.
+	 * Registrations also keep track of whether their object has been modified since it was
+	 * last saved or loaded, the size of its last saved or loaded file and, if delta persistence
+	 * is used, changes not yet appended to its delta file.
+	 * Entries also serve as the locks that prevent their object's file from being written or read
+	 * by several threads at once.
+	 */
+	static final class Entry extends WeakReference<Object> {
+		final String id;
+		final int hash;
+		volatile boolean savePermission = true;
+		volatile boolean dirty = true;
+		long storedSize = 0;
+		long storedChecksum = 0;
+		long deltaSize = 0;
+		ArrayList<String> pendingDelta = null;
+		Entry next;
+
+		Entry(Object object, String id, int hash, ReferenceQueue<Object> queue) {
+			super(object, queue);
+			this.id = id;
+			this.hash = hash;
+		}
+	}
+
+	private Entry[] table = new Entry[16];
+	private volatile int size = 0;
+	private LinkedHashMap<String, Entry> entriesById = new LinkedHashMap<String, Entry>();
+	private ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final LongAdder lookups = new LongAdder();
+	private volatile long collected = 0;
+
+	/**
+	 * Retrieves the object registered to the given id.
+	 * @param id The id to search for
+	 * @return The registered object, <code>null</code> if no such object is registered
+	 */
+	Object get(String id) {
+		expungeCollected();
+		lookups.increment();
+		lock.readLock().lock();
+		try {
+			Entry entry = entriesById.get(id);
+			return entry == null ? null : entry.get();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Retrieves the id of the given object.
+	 * @param object The object to search for
+	 * @return The object's id, <code>null</code> if the object is not registered
+	 */
+	String getId(Object object) {
+		Entry entry = getEntry(object);
+		return entry == null ? null : entry.id;
+	}
+
+	/**
+	 * Retrieves the registration of the given object.
+	 * @param object The object to search for
+	 * @return The object's registration entry, <code>null</code> if the object is not registered
+	 */
+	Entry getEntry(Object object) {
+		expungeCollected();
+		lookups.increment();
+		lock.readLock().lock();
+		try {
+			return findEntry(object);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private Entry findEntry(Object object) {
+		int hash = System.identityHashCode(object);
+		for (Entry entry = table[hash & (table.length - 1)]; entry != null; entry = entry.next)
+			if (entry.hash == hash && entry.get() == object)
+				return entry;
+		return null;
+	}
+
+	/**
+	 * Registers an object to the given id. Previous registrations of either the object or the id are replaced,
+	 * but the object's save permission is retained.
+	 * @param object The object to register
+	 * @param id The object's id
+	 */
+	void put(Object object, String id) {
+		expungeCollected();
+		lock.writeLock().lock();
+		try {
+			putEntry(object, id);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Registers an object to the given id only if the object is not already registered. Checking and
+	 * registering the object happen atomically, so that concurrent calls register the object only once.
+	 * @param object The object to register
+	 * @param id The object's id if it is not already registered
+	 * @return The object's previous id, <code>null</code> if it was registered to the given id
+	 */
+	String putIfUnregistered(Object object, String id) {
+		expungeCollected();
+		lock.writeLock().lock();
+		try {
+			Entry previous = findEntry(object);
+			if (previous != null)
+				return previous.id;
+			putEntry(object, id);
+			return null;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void putEntry(Object object, String id) {
+		Entry previous = findEntry(object);
+		if (previous != null && previous.id.equals(id))
+			return;
+		boolean savePermission = previous == null || previous.savePermission;
+		if (previous != null)
+			removeEntry(previous);
+		Entry sameId = entriesById.get(id);
+		if (sameId != null)
+			removeEntry(sameId);
+		int hash = System.identityHashCode(object);
+		Entry entry = new Entry(object, id, hash, queue);
+		entry.savePermission = savePermission;
+		int bucket = hash & (table.length - 1);
+		entry.next = table[bucket];
+		table[bucket] = entry;
+		entriesById.put(id, entry);
+		size++;
+		if (size > table.length * 3 / 4)
+			resize();
+	}
+
+	/**
+	 * Removes the registration of the given object, if it exists.
+	 * @param object The object to unregister
+	 * @return The removed id, <code>null</code> if the object was not registered
+	 */
+	String remove(Object object) {
+		expungeCollected();
+		lock.writeLock().lock();
+		try {
+			Entry entry = findEntry(object);
+			if (entry == null)
+				return null;
+			removeEntry(entry);
+			return entry.id;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Retrieves a snapshot of all registered objects that have not been garbage collected.
+	 * The snapshot holds strong references, so it should not be retained.
+	 * @return A list of registered objects in registration order
+	 */
+	ArrayList<Object> getObjects() {
+		expungeCollected();
+		lock.readLock().lock();
+		try {
+			ArrayList<Object> objects = new ArrayList<Object>(size);
+			for (Entry entry : entriesById.values()) {
+				Object object = entry.get();
+				if (object != null)
+					objects.add(object);
+			}
+			return objects;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of registrations, including ones whose objects have been collected but not yet expunged
+	 */
+	int size() {
+		expungeCollected();
+		return size;
+	}
+
+	/**
+	 * @return The number of lookups (by either id or object) performed on the registry
+	 */
+	long getLookups() {
+		return lookups.sum();
+	}
+
+	/**
+	 * @return The number of registrations removed because their objects were garbage collected
+	 */
+	long getCollected() {
+		return collected;
+	}
+
+	private boolean removeEntry(Entry entry) {
+		boolean found = false;
+		int bucket = entry.hash & (table.length - 1);
+		Entry previous = null;
+		for (Entry current = table[bucket]; current != null; previous = current, current = current.next) {
+			if (current == entry) {
+				if (previous == null)
+					table[bucket] = current.next;
+				else
+					previous.next = current.next;
+				size--;
+				found = true;
+				break;
+			}
+		}
+		if (entriesById.get(entry.id) == entry)
+			entriesById.remove(entry.id);
+		entry.clear();
+		return found;
+	}
+
+	private void expungeCollected() {
+		Reference<?> reference = queue.poll();
+		if (reference == null)
+			return;
+		lock.writeLock().lock();
+		try {
+			for (; reference != null; reference = queue.poll())
+				if (removeEntry((Entry) reference))
+					collected++;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void resize() {
+		Entry[] previousTable = table;
+		table = new Entry[previousTable.length * 2];
+		for (Entry head : previousTable) {
+			Entry entry = head;
+			while (entry != null) {
+				Entry next = entry.next;
+				int bucket = entry.hash & (table.length - 1);
+				entry.next = table[bucket];
+				table[bucket] = entry;
+				entry = next;
+			}
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * This class implements the packed representation used by the {@link Serializer} for primitive arrays
+ * and large lists of boxed numbers. Packed values are stored as base64 encodings of little-endian
+ * blocks, which are both smaller and faster to parse than JSON arrays of individual numbers.
+ * <p>
+ * Base64 encoding is implemented here instead of using java.util.Base64 to ensure compatibility
+ * with Android versions earlier than 26 (API level 26 introduced java.util.Base64).
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class PackedArrays {
+	/**
+	 * The minimum number of elements a list needs to have to be packed. Smaller lists are written
+	 * as JSON arrays, since packing gains little for them.
+	 */
+	static final int MIN_PACKED_LIST_SIZE = 16;
+
+	private static final char[] BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	private static final int[] BASE64_VALUES = new int[128];
+	static {
+		for (int i = 0; i < BASE64_VALUES.length; i++)
+			BASE64_VALUES[i] = -1;
+		for (int i = 0; i < BASE64_CHARS.length; i++)
+			BASE64_VALUES[BASE64_CHARS[i]] = i;
+	}
+
+	private PackedArrays() {}
+
+	/**
+	 * Retrieves the name under which arrays with the given component type are packed.
+	 * @param componentType The component type of an array
+	 * @return The packed type name, <code>null</code> if arrays of the given type cannot be packed
+	 */
+	static String getPackedType(Class<?> componentType) {
+		if (componentType == int.class || componentType == Integer.class)
+			return "int";
+		if (componentType == long.class || componentType == Long.class)
+			return "long";
+		if (componentType == float.class || componentType == Float.class)
+			return "float";
+		if (componentType == double.class || componentType == Double.class)
+			return "double";
+		if (componentType == byte.class || componentType == Byte.class)
+			return "byte";
+		return null;
+	}
+
+	/**
+	 * Retrieves the number of bytes each element of the given packed type occupies.
+	 * @param packedType A packed type name obtained by {@link #getPackedType(Class)}
+	 * @return The number of bytes per element
+	 */
+	static int getElementSize(String packedType) {
+		if (packedType.equals("long") || packedType.equals("double"))
+			return 8;
+		if (packedType.equals("int") || packedType.equals("float"))
+			return 4;
+		if (packedType.equals("byte"))
+			return 1;
+		return Utils.error("Unknown packed type: " + packedType, 0);
+	}
+
+	/**
+	 * Checks whether a list can be packed, i.e. whether it is large enough and all of its elements are
+	 * non-null instances of the given boxed class.
+	 * @param list The list to check
+	 * @param elementClass The class suggested by the list's type argument
+	 * @return Whether {@link #pack(List, String)} can be used on the list
+	 */
+	static boolean isPackable(List<?> list, Class<?> elementClass) {
+		if (list.size() < MIN_PACKED_LIST_SIZE || elementClass.isPrimitive() || getPackedType(elementClass) == null)
+			return false;
+		for (Object element : list)
+			if (element == null || element.getClass() != elementClass)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Packs a primitive array.
+	 * @param array An int[], long[], float[], double[] or byte[] array
+	 * @return The base64 encoding of the array's little-endian representation
+	 */
+	static String pack(Object array) {
+		Class<?> componentType = array.getClass().getComponentType();
+		ByteBuffer buffer;
+		if (componentType == byte.class)
+			return encode((byte[]) array);
+		if (componentType == int.class) {
+			int[] values = (int[]) array;
+			buffer = allocate(values.length * 4);
+			buffer.asIntBuffer().put(values);
+		}
+		else if (componentType == long.class) {
+			long[] values = (long[]) array;
+			buffer = allocate(values.length * 8);
+			buffer.asLongBuffer().put(values);
+		}
+		else if (componentType == float.class) {
+			float[] values = (float[]) array;
+			buffer = allocate(values.length * 4);
+			buffer.asFloatBuffer().put(values);
+		}
+		else if (componentType == double.class) {
+			double[] values = (double[]) array;
+			buffer = allocate(values.length * 8);
+			buffer.asDoubleBuffer().put(values);
+		}
+		else
+			return Utils.error("Cannot pack arrays of " + componentType, null);
+		return encode(buffer.array());
+	}
+
+	/**
+	 * Packs a list of boxed numbers that satisfies {@link #isPackable(List, Class)}.
+	 * @param list The list to pack
+	 * @param packedType The packed type name of the list's elements
+	 * @return The base64 encoding of the list's little-endian representation
+	 */
+	static String pack(List<?> list, String packedType) {
+		ByteBuffer buffer = allocate(list.size() * getElementSize(packedType));
+		for (Object element : list) {
+			if (packedType.equals("long"))
+				buffer.putLong((Long) element);
+			else if (packedType.equals("int"))
+				buffer.putInt((Integer) element);
+			else if (packedType.equals("double"))
+				buffer.putDouble((Double) element);
+			else if (packedType.equals("float"))
+				buffer.putFloat((Float) element);
+			else
+				buffer.put((Byte) element);
+		}
+		return encode(buffer.array());
+	}
+
+	/**
+	 * Unpacks a primitive array packed by {@link #pack(Object)}.
+	 * @param packedType The packed type name
+	 * @param data The base64 encoded data
+	 * @return The unpacked primitive array
+	 */
+	static Object unpack(String packedType, String data) {
+		byte[] bytes = decode(data);
+		if (packedType.equals("byte"))
+			return bytes;
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		int length = bytes.length / getElementSize(packedType);
+		if (packedType.equals("int")) {
+			int[] values = new int[length];
+			buffer.asIntBuffer().get(values);
+			return values;
+		}
+		if (packedType.equals("long")) {
+			long[] values = new long[length];
+			buffer.asLongBuffer().get(values);
+			return values;
+		}
+		if (packedType.equals("float")) {
+			float[] values = new float[length];
+			buffer.asFloatBuffer().get(values);
+			return values;
+		}
+		if (packedType.equals("double")) {
+			double[] values = new double[length];
+			buffer.asDoubleBuffer().get(values);
+			return values;
+		}
+		return Utils.error("Unknown packed type: " + packedType, null);
+	}
+
+	/**
+	 * Adds the elements of an unpacked primitive array to a list as boxed values.
+	 * @param array The array obtained by {@link #unpack(String, String)}
+	 * @param list The list to add elements to
+	 */
+	static void addAll(Object array, List<Object> list) {
+		if (array instanceof long[])
+			for (long value : (long[]) array)
+				list.add(value);
+		else if (array instanceof int[])
+			for (int value : (int[]) array)
+				list.add(value);
+		else if (array instanceof double[])
+			for (double value : (double[]) array)
+				list.add(value);
+		else if (array instanceof float[])
+			for (float value : (float[]) array)
+				list.add(value);
+		else if (array instanceof byte[])
+			for (byte value : (byte[]) array)
+				list.add(value);
+	}
+
+	private static ByteBuffer allocate(int bytes) {
+		return ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	static String encode(byte[] bytes) {
+		StringBuilder builder = new StringBuilder((bytes.length + 2) / 3 * 4);
+		for (int i = 0; i < bytes.length; i += 3) {
+			int block = (bytes[i] & 0xFF) << 16;
+			if (i + 1 < bytes.length)
+				block |= (bytes[i + 1] & 0xFF) << 8;
+			if (i + 2 < bytes.length)
+				block |= bytes[i + 2] & 0xFF;
+			builder.append(BASE64_CHARS[(block >> 18) & 0x3F]);
+			builder.append(BASE64_CHARS[(block >> 12) & 0x3F]);
+			builder.append(i + 1 < bytes.length ? BASE64_CHARS[(block >> 6) & 0x3F] : '=');
+			builder.append(i + 2 < bytes.length ? BASE64_CHARS[block & 0x3F] : '=');
+		}
+		return builder.toString();
+	}
+
+	static byte[] decode(String data) {
+		int length = data.length();
+		while (length > 0 && data.charAt(length - 1) == '=')
+			length--;
+		byte[] bytes = new byte[length * 3 / 4];
+		int block = 0;
+		int bits = 0;
+		int position = 0;
+		for (int i = 0; i < length; i++) {
+			char c = data.charAt(i);
+			int value = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+			if (value < 0)
+				return Utils.error("Invalid base64 character in packed data: " + c, new byte[0]);
+			block = (block << 6) | value;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				bytes[position++] = (byte) (block >> bits);
+			}
+		}
+		return bytes;
+	}
+}
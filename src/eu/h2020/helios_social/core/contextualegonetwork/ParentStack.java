@@ -0,0 +1,89 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * This class implements the stack of objects that the {@link Serializer} is currently
+ * serializing or deserializing, which is used to resolve <code>@par</code> back-references
+ * to enclosing objects. Objects are compared by identity, so that objects overriding
+ * {@link Object#equals(Object)} are neither confused with each other nor need to compute
+ * hash codes, and lookups take constant time.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class ParentStack {
+	private ArrayList<Object> stack = new ArrayList<Object>();
+	private IdentityHashMap<Object, Integer> positions = new IdentityHashMap<Object, Integer>();
+	/**
+	 * Whether strings deserialized within the field currently being deserialized should be canonicalized
+	 */
+	boolean deduplicateStrings = false;
+
+	/**
+	 * Pushes an object on top of the stack.
+	 * @param object The object whose contents are about to be (de)serialized
+	 */
+	void push(Object object) {
+		if (!positions.containsKey(object))
+			positions.put(object, stack.size());
+		stack.add(object);
+	}
+
+	/**
+	 * Removes the object on top of the stack.
+	 * @return The removed object
+	 */
+	Object pop() {
+		int position = stack.size() - 1;
+		Object object = stack.remove(position);
+		Integer objectPosition = positions.get(object);
+		if (objectPosition != null && objectPosition == position)
+			positions.remove(object);
+		return object;
+	}
+
+	/**
+	 * Pops objects until the stack has the given size. This is used to recover a consistent
+	 * stack after failing to (de)serialize part of an object.
+	 * @param size The size to reduce the stack to
+	 */
+	void popTo(int size) {
+		while (stack.size() > size)
+			pop();
+	}
+
+	/**
+	 * @return The number of objects in the stack
+	 */
+	int size() {
+		return stack.size();
+	}
+
+	/**
+	 * Checks whether the exact given object is in the stack.
+	 * @param object The object to search for
+	 * @return Whether the object is currently being (de)serialized
+	 */
+	boolean contains(Object object) {
+		return positions.containsKey(object);
+	}
+
+	/**
+	 * Retrieves how many positions below the top of the stack (plus one) an object resides.
+	 * @param object An object contained in the stack
+	 * @return The object's distance, where 1 refers to the object on top of the stack
+	 */
+	int getDistance(Object object) {
+		return stack.size() - positions.get(object);
+	}
+
+	/**
+	 * Retrieves an object given its distance.
+	 * @param distance The distance obtained by {@link #getDistance(Object)} while serializing
+	 * @return The object at the given distance from the top of the stack
+	 */
+	Object get(int distance) {
+		return stack.get(stack.size() - distance);
+	}
+}
@@ -0,0 +1,312 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * This class implements the layout of a segmented store, in which the {@link Serializer} keeps the records
+ * of many small objects (e.g. nodes) instead of saving each of them in its own file. Records are grouped into
+ * segments of up to {@link #SEGMENT_CAPACITY} objects that are written as single lines of an append-only store file,
+ * while an index file keeps track of the offset and length of each segment's latest version, as well as the ids of
+ * the objects it contains. Hence, loading the store requires reading only two files and saving modified objects
+ * requires appending only the segments that contain them.
+ * <p>
+ * Appended segments leave their previous versions behind as garbage. Once garbage exceeds half of the store file,
+ * live segments are compacted into a new store file, which replaces the previous one only after the index referring
+ * to it has been written. This way, the index always refers to a complete store file. If saving is interrupted
+ * after appending to the store file but before writing the index, the appended segments are treated as garbage
+ * once the store is loaded again.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class SegmentedStore {
+	static final int SEGMENT_CAPACITY = 64;
+
+	private static final class Segment {
+		long offset = 0;
+		long length = 0;
+		ArrayList<String> ids = new ArrayList<String>();
+	}
+
+	private final Storage storage;
+	private final String name;
+	private final Class<?> storedClass;
+	private ArrayList<Segment> segments = new ArrayList<Segment>();
+	private HashMap<String, Integer> segmentOfId = new HashMap<String, Integer>();
+	private HashMap<String, JSONObject> loadedRecords = new HashMap<String, JSONObject>();
+	private HashSet<String> flatFiles = new HashSet<String>();
+	private SoftReference<String> storeContents = new SoftReference<String>(null);
+	private int generation = 0;
+	private long storeLength = 0;
+	private long garbage = 0;
+
+	/**
+	 * @param storage The storage in which the store's files reside
+	 * @param name The name of the store, which prefixes its files
+	 * @param storedClass The class of objects kept in the store
+	 */
+	SegmentedStore(Storage storage, String name, Class<?> storedClass) {
+		this.storage = storage;
+		this.name = name;
+		this.storedClass = storedClass;
+	}
+
+	/**
+	 * @param object An object
+	 * @return Whether the object should be kept in the store
+	 */
+	boolean isStored(Object object) {
+		return storedClass.isInstance(object);
+	}
+
+	private String getIndexFileName() {
+		return name + ".index";
+	}
+
+	private String getStoreFileName(int storeGeneration) {
+		return name + "." + storeGeneration + ".store";
+	}
+
+	/**
+	 * Checks whether a store with the given name exists in the storage.
+	 * @param storage The storage in which to search
+	 * @param name The name of the store
+	 * @return Whether the store's index exists
+	 */
+	static boolean exists(Storage storage, String name) {
+		return storage.fileExists(name + ".index");
+	}
+
+	/**
+	 * Reads the index and the store file and parses all records, which can then be obtained once
+	 * through {@link #takeRecord(String)}.
+	 * @throws Exception on storage failure
+	 */
+	void load() throws Exception {
+		if (!storage.fileExists(getIndexFileName()))
+			return;
+		JSONObject index = new JSONObject(storage.loadFromFile(getIndexFileName()));
+		generation = index.getInt("generation");
+		storeLength = index.getLong("length");
+		garbage = index.getLong("garbage");
+		String contents = readStore();
+		if (contents.length() < storeLength) {
+			Utils.error(new IllegalStateException("Store " + name + " is shorter than its index"));
+			return;
+		}
+		if (contents.length() > storeLength) {
+			// segments appended without their index being written are unreachable
+			Utils.log("Store " + name + " has " + (contents.length() - storeLength) + " bytes of unindexed segments");
+			garbage += contents.length() - storeLength;
+			storeLength = contents.length();
+		}
+		JSONArray indexSegments = index.getJSONArray("segments");
+		for (int i = 0; i < indexSegments.length(); i++) {
+			JSONObject indexSegment = indexSegments.getJSONObject(i);
+			Segment segment = new Segment();
+			segment.offset = indexSegment.getLong("offset");
+			segment.length = indexSegment.getLong("length");
+			JSONArray ids = indexSegment.getJSONArray("ids");
+			for (int j = 0; j < ids.length(); j++) {
+				segment.ids.add(ids.getString(j));
+				segmentOfId.put(ids.getString(j), segments.size());
+			}
+			segments.add(segment);
+			if (segment.length == 0)
+				continue;
+			JSONArray records = new JSONArray(contents.substring((int) segment.offset, (int) (segment.offset + segment.length)));
+			for (int j = 0; j < records.length(); j++) {
+				JSONObject record = records.getJSONObject(j);
+				loadedRecords.put(record.getString("@id"), record);
+			}
+		}
+		Utils.log("Loaded store " + name + " with " + segmentOfId.size() + " records in " + segments.size() + " segments");
+	}
+
+	/**
+	 * Retrieves the record of an object. Records loaded by {@link #load()} are discarded once retrieved,
+	 * in which case retrieving them again parses the object's segment from the store file and keeps
+	 * the segment's other records for subsequent retrievals.
+	 * @param id The object's id
+	 * @return The object's record, <code>null</code> if the store holds no record for the object
+	 * @throws Exception on storage failure
+	 */
+	JSONObject takeRecord(String id) throws Exception {
+		JSONObject record = loadedRecords.remove(id);
+		if (record != null || !segmentOfId.containsKey(id))
+			return record;
+		Segment segment = segments.get(segmentOfId.get(id));
+		if (segment.length == 0)
+			return null;
+		String contents = readStore();
+		JSONArray records = new JSONArray(contents.substring((int) segment.offset, (int) (segment.offset + segment.length)));
+		for (int j = 0; j < records.length(); j++) {
+			JSONObject segmentRecord = records.getJSONObject(j);
+			String recordId = segmentRecord.getString("@id");
+			if (id.equals(recordId))
+				record = segmentRecord;
+			else if (segmentOfId.containsKey(recordId) && !loadedRecords.containsKey(recordId))
+				loadedRecords.put(recordId, segmentRecord);
+		}
+		return record;
+	}
+
+	/**
+	 * Reads the store file, reusing its contents from previous reads if they have not been garbage collected
+	 * and the store has not been written since.
+	 * @return The contents of the store file
+	 * @throws Exception on storage failure
+	 */
+	private String readStore() throws Exception {
+		String contents = storeContents.get();
+		if (contents != null)
+			return contents;
+		contents = storage.loadFromFile(getStoreFileName(generation));
+		if (!System.lineSeparator().equals("\n"))
+			contents = contents.replace(System.lineSeparator(), "\n");
+		storeContents = new SoftReference<String>(contents);
+		return contents;
+	}
+
+	/**
+	 * @param id An object's id
+	 * @return Whether the store holds a segment for the object
+	 */
+	boolean contains(String id) {
+		return segmentOfId.containsKey(id);
+	}
+
+	/**
+	 * Marks that an object was loaded from its own file, which should be deleted once the object
+	 * is written in the store.
+	 * @param id The object's id
+	 */
+	void addFlatFile(String id) {
+		flatFiles.add(id);
+	}
+
+	/**
+	 * Retrieves the segment of an object, assigning the object to a segment with free space if needed.
+	 * @param id The object's id
+	 * @return The object's segment
+	 */
+	int getOrAssignSegment(String id) {
+		Integer segment = segmentOfId.get(id);
+		if (segment != null)
+			return segment;
+		int last = segments.size() - 1;
+		if (last < 0 || segments.get(last).ids.size() >= SEGMENT_CAPACITY) {
+			segments.add(new Segment());
+			last++;
+		}
+		segments.get(last).ids.add(id);
+		segmentOfId.put(id, last);
+		return last;
+	}
+
+	/**
+	 * Removes an object from its segment.
+	 * @param id The object's id
+	 * @return The segment the object was removed from, -1 if the object was not in the store
+	 */
+	int remove(String id) {
+		Integer segment = segmentOfId.remove(id);
+		loadedRecords.remove(id);
+		if (segment == null)
+			return -1;
+		segments.get(segment).ids.remove(id);
+		return segment;
+	}
+
+	/**
+	 * @param segment A segment
+	 * @return A copy of the ids of the objects in the segment
+	 */
+	ArrayList<String> getIds(int segment) {
+		return new ArrayList<String>(segments.get(segment).ids);
+	}
+
+	/**
+	 * Writes new versions of the given segments by appending them to the store file, updates the index
+	 * and deletes the individual files of objects written for the first time. Compacts the store if needed.
+	 * @param segmentRecords The serialized records of each segment's objects, in the order of {@link #getIds(int)}
+	 * @throws Exception on storage failure
+	 */
+	void write(Map<Integer, ? extends List<String>> segmentRecords) throws Exception {
+		StringBuilder appended = new StringBuilder();
+		for (Map.Entry<Integer, ? extends List<String>> segmentEntry : segmentRecords.entrySet()) {
+			Segment segment = segments.get(segmentEntry.getKey());
+			garbage += segment.length == 0 ? 0 : segment.length + 1;
+			segment.offset = storeLength + appended.length();
+			appended.append('[');
+			for (int j = 0; j < segmentEntry.getValue().size(); j++) {
+				if (j != 0)
+					appended.append(',');
+				appended.append(segmentEntry.getValue().get(j));
+			}
+			appended.append(']');
+			segment.length = storeLength + appended.length() - segment.offset;
+			appended.append('\n');
+			for (String id : segment.ids)
+				loadedRecords.remove(id);
+		}
+		storeContents = new SoftReference<String>(null);
+		storage.appendToFile(getStoreFileName(generation), appended.toString());
+		storeLength += appended.length();
+		if (garbage > storeLength / 2)
+			compact();
+		else
+			writeIndex();
+		ArrayList<String> deleted = new ArrayList<String>();
+		for (String id : flatFiles)
+			if (segmentOfId.containsKey(id) && segmentRecords.containsKey(segmentOfId.get(id))) {
+				storage.deleteFile(id + ".json");
+				deleted.add(id);
+			}
+		flatFiles.removeAll(deleted);
+	}
+
+	private void compact() throws Exception {
+		String contents = readStore();
+		StringBuilder compacted = new StringBuilder();
+		for (Segment segment : segments) {
+			String segmentContents = contents.substring((int) segment.offset, (int) (segment.offset + segment.length));
+			segment.offset = compacted.length();
+			if (segment.length != 0)
+				compacted.append(segmentContents).append('\n');
+		}
+		int previousGeneration = generation;
+		generation = 1 - generation;
+		storeContents = new SoftReference<String>(null);
+		storage.saveToFile(getStoreFileName(generation), compacted.toString());
+		Utils.log("Compacted store " + name + " from " + storeLength + " to " + compacted.length() + " bytes");
+		storeLength = compacted.length();
+		garbage = 0;
+		writeIndex();
+		storage.deleteFile(getStoreFileName(previousGeneration));
+	}
+
+	private void writeIndex() throws Exception {
+		JSONObject index = new JSONObject();
+		index.put("generation", generation);
+		index.put("length", storeLength);
+		index.put("garbage", garbage);
+		JSONArray indexSegments = new JSONArray();
+		for (Segment segment : segments) {
+			JSONObject indexSegment = new JSONObject();
+			indexSegment.put("offset", segment.offset);
+			indexSegment.put("length", segment.length);
+			indexSegment.put("ids", new JSONArray(segment.ids));
+			indexSegments.put(indexSegment);
+		}
+		index.put("segments", indexSegments);
+		storage.saveToFile(getIndexFileName(), index.toString());
+	}
+}
@@ -1,5 +1,13 @@
 package eu.h2020.helios_social.core.contextualegonetwork;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -7,18 +15,30 @@ import java.lang.annotation.Target;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  * This class supports dynamic object serialization, with the capability of reloading
@@ -30,9 +50,21 @@ import org.json.JSONObject;
  * {@link #registerId(Object, String)} to specify a given id.
  * <p>
  * Serialization supports non-enum primitive datatypes, lists, arrays and maps with String keys.
+ * Primitive values are written as native JSON numbers and booleans, but string-encoded values
+ * written by earlier versions of this class are still read. Arrays of int, long, float, double and byte
+ * elements, as well as large lists of the respective boxed types, are packed into base64 encoded
+ * little-endian blocks.
  * <p>
  * To declare that a class field should not be saved, put the annotation
  * <code>@Serializer.Serialization(enabled=false)</code> over it.
+ * <p>
+ * Registered objects are tracked by identity and are only weakly referenced by the serializer.
+ * Hence, objects that are no longer referenced by the application (e.g. discarded networks)
+ * are garbage collected and automatically unregistered.
+ * <p>
+ * Serializers are thread-safe. Registry lookups do not block each other and are not blocked by saving
+ * or loading objects. Files of different objects can be written or read concurrently, whereas each
+ * object's file is written or read by only one thread at a time.
  *
  * @author Emmanouil Krasanakis (maniospas@iti.gr)
  */
@@ -43,11 +75,94 @@ public class Serializer {
 		boolean enabled() default true;
 	}
 
-	private HashMap<Object, Boolean> enableSaving;
-	private HashMap<Object, String> objectIds;
-	private HashMap<String, Object> idObjects;
+	private static class PrefetchedFile {
+		final JSONObject json;
+		final long size;
+		final long checksum;
+		PrefetchedFile(JSONObject json, long size, long checksum) {
+			this.json = json;
+			this.size = size;
+			this.checksum = checksum;
+		}
+	}
+
+	private static final class CountingInputStream extends FilterInputStream {
+		long count = 0;
+		final CRC32 checksum = new CRC32();
+		CountingInputStream(InputStream inputStream) {
+			super(inputStream);
+		}
+		@Override
+		public int read() throws IOException {
+			int value = super.read();
+			if (value >= 0) {
+				count++;
+				checksum.update(value);
+			}
+			return value;
+		}
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int read = super.read(bytes, offset, length);
+			if (read > 0) {
+				count += read;
+				checksum.update(bytes, offset, read);
+			}
+			return read;
+		}
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+		final CRC32 checksum = new CRC32();
+		CountingOutputStream(OutputStream outputStream) {
+			super(outputStream);
+		}
+		@Override
+		public void write(int value) throws IOException {
+			out.write(value);
+			count++;
+			checksum.update(value);
+		}
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			count += length;
+			checksum.update(bytes, offset, length);
+		}
+	}
+
+	/**
+	 * The prefix of the lines of delta files that identify the object file to which subsequent changes apply.
+	 */
+	private static final String DELTA_BASE_PREFIX = "#base ";
+
+	private ObjectRegistry registry;
+	private ConcurrentHashMap<String, PrefetchedFile> prefetched = new ConcurrentHashMap<String, PrefetchedFile>();
+	private ConcurrentHashMap<String, CompletableFuture<PrefetchedFile>> pendingPrefetches = new ConcurrentHashMap<String, CompletableFuture<PrefetchedFile>>();
+	private volatile SegmentedStore segmentedStore = null;
+	private volatile int lastSavedFiles = 0;
+	private volatile int lastSkippedFiles = 0;
+	private volatile long lastSkippedBytes = 0;
+	private volatile boolean deltaPersistence = false;
+	private volatile double deltaCompactionRatio = 1;
+	private volatile StringTable stringTable = null;
+	private Set<Class<?>> deduplicatedTypes = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+	private Set<String> deduplicatedFields = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	private Storage storage;
-	private static HashMap<Storage, Serializer> serializers = new HashMap<Storage, Serializer>();
+	private final WriteBehindStorage writeBehindStorage;
+	private static final ConcurrentHashMap<Storage, Serializer> serializers = new ConcurrentHashMap<Storage, Serializer>();
+	private static HashMap<Class<?>, Class<?>> primitiveWrappers = new HashMap<Class<?>, Class<?>>();
+	static {
+		primitiveWrappers.put(boolean.class, Boolean.class);
+		primitiveWrappers.put(long.class, Long.class);
+		primitiveWrappers.put(int.class, Integer.class);
+		primitiveWrappers.put(short.class, Short.class);
+		primitiveWrappers.put(byte.class, Byte.class);
+		primitiveWrappers.put(char.class, Character.class);
+		primitiveWrappers.put(double.class, Double.class);
+		primitiveWrappers.put(float.class, Float.class);
+	}
 
 	protected static List<Field> getAllFields(Class<?> type) {
 		List<Field> fields = new ArrayList<Field>();
@@ -56,34 +171,157 @@ public class Serializer {
 		return fields;
 	}
 
+	/**
+	 * Checks whether a primitive value can be written without a class descriptor, i.e. whether
+	 * its class is the one that deserialization infers from the suggested (e.g. field) type.
+	 * @param suggestedClass The type suggested by the enclosing field, list or array
+	 * @param valueClass The class of the value to write
+	 * @return Whether the value's class is implied by the suggested type
+	 */
+	protected static boolean isImpliedClass(Type suggestedClass, Class<?> valueClass) {
+		if (suggestedClass == valueClass)
+			return true;
+		return primitiveWrappers.get(suggestedClass) == valueClass;
+	}
+
+	/**
+	 * Converts a primitive value to its JSON representation. Numbers and booleans are written natively,
+	 * with the exception of non-finite floating point values that JSON cannot represent.
+	 * @param object A String, Enum or (boxed) primitive value
+	 * @return The value to put in a JSONObject or JSONArray
+	 */
+	protected static Object toJSONPrimitive(Object object) {
+		if (object instanceof Double && !Double.isFinite((Double) object))
+			return object.toString();
+		if (object instanceof Float && !Float.isFinite((Float) object))
+			return object.toString();
+		if (object instanceof Number || object instanceof Boolean)
+			return object;
+		return object.toString();
+	}
+
+	private static long toLong(Object jsonValue) {
+		return jsonValue instanceof Number ? ((Number) jsonValue).longValue() : Long.parseLong(jsonValue.toString());
+	}
+
+	private static int toInt(Object jsonValue) {
+		return jsonValue instanceof Number ? ((Number) jsonValue).intValue() : Integer.parseInt(jsonValue.toString());
+	}
+
+	private static double toDouble(Object jsonValue) {
+		return jsonValue instanceof Number ? ((Number) jsonValue).doubleValue() : Double.parseDouble(jsonValue.toString());
+	}
+
+	private static float toFloat(Object jsonValue) {
+		return jsonValue instanceof Number ? ((Number) jsonValue).floatValue() : Float.parseFloat(jsonValue.toString());
+	}
+
+	private static boolean toBoolean(Object jsonValue) {
+		return jsonValue instanceof Boolean ? (Boolean) jsonValue : Boolean.parseBoolean(jsonValue.toString());
+	}
+
+	/**
+	 * Sets a primitive field from its JSON value without creating intermediate boxed objects.
+	 * Both native JSON values and string-encoded ones are accepted.
+	 */
+	protected static void setPrimitiveField(Field field, Object object, Object jsonValue) throws IllegalAccessException {
+		if (jsonValue instanceof JSONObject && ((JSONObject) jsonValue).has("@value"))
+			jsonValue = ((JSONObject) jsonValue).get("@value");
+		Class<?> type = field.getType();
+		if (type == long.class)
+			field.setLong(object, toLong(jsonValue));
+		else if (type == int.class)
+			field.setInt(object, toInt(jsonValue));
+		else if (type == double.class)
+			field.setDouble(object, toDouble(jsonValue));
+		else if (type == float.class)
+			field.setFloat(object, toFloat(jsonValue));
+		else if (type == boolean.class)
+			field.setBoolean(object, toBoolean(jsonValue));
+		else if (type == short.class)
+			field.setShort(object, (short) toInt(jsonValue));
+		else if (type == byte.class)
+			field.setByte(object, (byte) toInt(jsonValue));
+		else if (type == char.class)
+			field.setChar(object, jsonValue.toString().charAt(0));
+	}
+
+	/**
+	 * Writes a primitive field to the given JSONObject without creating intermediate boxed objects.
+	 */
+	protected static void putPrimitiveField(JSONObject classObject, Field field, Object object) throws IllegalAccessException {
+		Class<?> type = field.getType();
+		if (type == long.class)
+			classObject.put(field.getName(), field.getLong(object));
+		else if (type == int.class)
+			classObject.put(field.getName(), field.getInt(object));
+		else if (type == boolean.class)
+			classObject.put(field.getName(), field.getBoolean(object));
+		else
+			classObject.put(field.getName(), toJSONPrimitive(field.get(object)));
+	}
+
 	/**
 	 * This function removes all serializers from memory. This effectively unloads every contextual ego network without saving.
 	 *
 	 * <b>Only use for testing.</b>
 	 */
-	public synchronized static void clearSerializers() {
+	public static void clearSerializers() {
 		serializers.clear();
 	}
 
 	/**
 	 * Obtains a serializer that stores objects using a specific {@link Storage}
-	 * object. Serializers are 1-1 mapped to storage objects.
+	 * object. Serializers are 1-1 mapped to storage objects until they are closed.
 	 *
 	 * @param path The {@link Storage} object that manages file operations to store and load objects
 	 * @return The serializer's instance
+	 * @see #close()
 	 */
-	public synchronized static Serializer getInstance(Storage storage) {
+	public static Serializer getInstance(Storage storage) {
 		Serializer serializer = serializers.get(storage);
 		if (serializer == null)
-			serializers.put(storage, serializer = new Serializer(storage));
+			serializer = serializers.computeIfAbsent(storage, Serializer::new);
 		return serializer;
 	}
 
+	/**
+	 * Closes the serializer of a storage, if any.
+	 * @param storage The storage
+	 * @see Storage#close()
+	 */
+	static void release(Storage storage) {
+		Serializer serializer = serializers.get(storage);
+		if (serializer != null)
+			serializer.close();
+	}
+
+	/**
+	 * Waits until all files queued by write-behind persistence have been written and removes the serializer
+	 * from those obtained through {@link #getInstance(Storage)}, so that the latter creates a new serializer for
+	 * the same storage. Registered objects are not saved. The serializer should not be used after being closed.
+	 * @see ContextualEgoNetwork#close()
+	 */
+	public void close() {
+		try {
+			flush().get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Utils.error(e);
+		}
+		catch (ExecutionException e) {
+			Utils.error(e.getCause());
+		}
+		finally {
+			serializers.remove(storage, this);
+		}
+	}
+
 	protected Serializer(Storage storage) {
-		enableSaving = new HashMap<Object, Boolean>();
-		objectIds = new HashMap<Object, String>();
-		idObjects = new HashMap<String, Object>();
+		registry = new ObjectRegistry();
 		this.storage = storage;
+		writeBehindStorage = new WriteBehindStorage(storage);
 	}
 
 	/**
@@ -93,6 +331,234 @@ public class Serializer {
 		return storage;
 	}
 
+	/**
+	 * Retrieves the number of objects currently registered in the serializer.
+	 * This excludes objects that have been garbage collected.
+	 * @return The number of registered objects
+	 * @see #registerId(Object)
+	 */
+	public int getRegistrySize() {
+		return registry.size();
+	}
+
+	/**
+	 * Retrieves the number of registry lookups (both by object and by id) that the serializer
+	 * has performed since its creation.
+	 * @return The number of lookups
+	 */
+	public long getRegistryLookups() {
+		return registry.getLookups();
+	}
+
+	/**
+	 * Enables or disables delta persistence. When enabled, changes recorded through {@link #recordChange(Object, String)}
+	 * are appended to a delta file that accompanies the object's file instead of rewriting the latter.
+	 * Objects are fully rewritten (and their delta files removed) when they are modified in ways that
+	 * cannot be recorded as changes or when their delta grows past the compaction ratio. While enabled,
+	 * {@link Context#save()} and {@link Context#cleanup()} save contexts only if they are marked as modified,
+	 * so that changes to the data objects of contexts need to be marked with {@link Serializer#markDirty(Object)}.
+	 * @param enabled Whether delta persistence is enabled (default is <code>false</code>)
+	 * @see #setDeltaCompactionRatio(double)
+	 */
+	public void setDeltaPersistence(boolean enabled) {
+		deltaPersistence = enabled;
+	}
+
+	/**
+	 * @return Whether delta persistence is enabled
+	 * @see #setDeltaPersistence(boolean)
+	 */
+	public boolean isDeltaPersistence() {
+		return deltaPersistence;
+	}
+
+	/**
+	 * Sets the maximum ratio between the size of an object's delta file and the size of its file, past
+	 * which saving the object compacts the delta by rewriting the object's file.
+	 * @param ratio The compaction ratio (default is 1)
+	 * @see #setDeltaPersistence(boolean)
+	 */
+	public void setDeltaCompactionRatio(double ratio) {
+		if (ratio < 0)
+			Utils.error(new IllegalArgumentException("Compaction ratio cannot be negative"));
+		else
+			deltaCompactionRatio = ratio;
+	}
+
+	/**
+	 * Enables or disables write-behind persistence. When enabled, saving objects serializes them on the caller's
+	 * thread but queues writing the resulting files to a background thread. Multiple saves of the same object
+	 * that are queued at the same time are coalesced into writing its last contents only, and loading queued
+	 * files retrieves their queued contents. Saving waits for the background thread when the given number of
+	 * files is queued. Disabling write-behind waits until all queued files are written.
+	 * @param maxPendingFiles The maximum number of queued files, zero to disable write-behind (default)
+	 * @see #flush()
+	 */
+	public void setWriteBehind(int maxPendingFiles) {
+		if (maxPendingFiles < 0) {
+			Utils.error(new IllegalArgumentException("The number of queued files cannot be negative"));
+			return;
+		}
+		try {
+			writeBehindStorage.setMaxPendingFiles(maxPendingFiles);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Utils.error(e);
+		}
+	}
+
+	/**
+	 * @return Whether write-behind persistence is enabled
+	 * @see #setWriteBehind(int)
+	 */
+	public boolean isWriteBehind() {
+		return writeBehindStorage.isEnabled();
+	}
+
+	/**
+	 * Obtains a future that completes once all files queued by write-behind persistence before calling this method
+	 * have been written. The future completes exceptionally if writing any file has failed since the last completed
+	 * flush. If write-behind is disabled, the returned future has already completed.
+	 * @return The flush's future
+	 * @see #setWriteBehind(int)
+	 */
+	public CompletableFuture<Void> flush() {
+		return writeBehindStorage.flush();
+	}
+
+	/**
+	 * @return The number of files currently queued by write-behind persistence
+	 * @see #setWriteBehind(int)
+	 */
+	public int getPendingWrites() {
+		return writeBehindStorage.getPendingFiles();
+	}
+
+	/**
+	 * @return The number of file operations that write-behind persistence merged with queued operations
+	 *  on the same files instead of performing them separately
+	 * @see #setWriteBehind(int)
+	 */
+	public long getCoalescedWrites() {
+		return writeBehindStorage.getCoalescedOperations();
+	}
+
+	/**
+	 * Enables or disables the canonicalization of deserialized strings, so that equal strings loaded from
+	 * different files (or different parts of the same file) share a single instance. Canonical instances are
+	 * kept in a bounded table whose least recently used entries are evicted once it is full. If no types or fields
+	 * are specified through {@link #deduplicateStrings(Class)} or {@link #deduplicateStrings(Class, String)},
+	 * all deserialized strings are canonicalized.
+	 * @param capacity The maximum number of canonical strings, zero to disable canonicalization (default)
+	 * @see #getDeduplicatedBytes()
+	 */
+	public void setStringDeduplication(int capacity) {
+		if (capacity < 0)
+			Utils.error(new IllegalArgumentException("Capacity cannot be negative"));
+		else
+			stringTable = capacity == 0 ? null : new StringTable(capacity);
+	}
+
+	/**
+	 * Restricts string canonicalization to the given type, in which case only strings deserialized within
+	 * the fields of objects of that type (including their lists, arrays and maps) are canonicalized.
+	 * This can be called several times to canonicalize strings within several types or fields.
+	 * @param type The type whose strings should be canonicalized
+	 * @see #setStringDeduplication(int)
+	 */
+	public void deduplicateStrings(Class<?> type) {
+		deduplicatedTypes.add(type);
+	}
+
+	/**
+	 * Restricts string canonicalization to the given field, in which case only strings deserialized within
+	 * that field (including its lists, arrays and maps) are canonicalized. This can be called several times
+	 * to canonicalize strings within several types or fields.
+	 * @param type The type declaring the field, or one of its subclasses
+	 * @param fieldName The name of the field whose strings should be canonicalized
+	 * @see #setStringDeduplication(int)
+	 */
+	public void deduplicateStrings(Class<?> type, String fieldName) {
+		deduplicatedFields.add(type.getName() + "." + fieldName);
+	}
+
+	/**
+	 * Retrieves the number of deserialized strings that have been replaced by canonical instances
+	 * since string canonicalization was enabled.
+	 * @return The number of deduplicated strings
+	 * @see #setStringDeduplication(int)
+	 */
+	public long getDeduplicatedStrings() {
+		StringTable table = stringTable;
+		return table == null ? 0 : table.getDeduplicatedStrings();
+	}
+
+	/**
+	 * Retrieves an estimate of the heap bytes saved by replacing deserialized strings with canonical instances
+	 * since string canonicalization was enabled.
+	 * @return The estimated number of saved bytes
+	 * @see #setStringDeduplication(int)
+	 */
+	public long getDeduplicatedBytes() {
+		StringTable table = stringTable;
+		return table == null ? 0 : table.getDeduplicatedBytes();
+	}
+
+	private boolean isDeduplicated(Class<?> type, Field field) {
+		if (deduplicatedTypes.isEmpty() && deduplicatedFields.isEmpty())
+			return true;
+		for (Class<?> deduplicatedType : deduplicatedTypes)
+			if (deduplicatedType.isAssignableFrom(type))
+				return true;
+		for (Class<?> superclass = type; superclass != null; superclass = superclass.getSuperclass())
+			if (deduplicatedFields.contains(superclass.getName() + "." + field.getName()))
+				return true;
+		return false;
+	}
+
+	private String canonicalize(String value, ParentStack parents) {
+		StringTable table = stringTable;
+		if (table == null || !parents.deduplicateStrings)
+			return value;
+		return table.canonicalize(value);
+	}
+
+	/**
+	 * Retrieves the number of files written by the last {@link #saveAllDirty()} call.
+	 * @return The number of saved files
+	 */
+	public int getLastSavedFiles() {
+		return lastSavedFiles;
+	}
+
+	/**
+	 * Retrieves the number of files that the last {@link #saveAllDirty()} call did not need to write
+	 * because their objects had not been modified.
+	 * @return The number of skipped files
+	 */
+	public int getLastSkippedFiles() {
+		return lastSkippedFiles;
+	}
+
+	/**
+	 * Retrieves the total size of the files that the last {@link #saveAllDirty()} call did not need to write,
+	 * as measured by the length of their serialized contents when they were last saved or loaded.
+	 * @return The number of skipped bytes
+	 */
+	public long getLastSkippedBytes() {
+		return lastSkippedBytes;
+	}
+
+	/**
+	 * Retrieves the number of registered objects that have been automatically unregistered
+	 * because they were garbage collected.
+	 * @return The number of collected registrations
+	 */
+	public long getRegistryCollected() {
+		return registry.getCollected();
+	}
+
 
 	/**
 	 * Retrieves an object registered to the given unique identifier.
@@ -102,9 +568,9 @@ public class Serializer {
 	 * @see #registerId(Object, String)
 	 * @see #getRegisteredIdOrNull(Object)
 	 */
-	public synchronized Object getObjectOrNull(String specificId) {
+	public Object getObjectOrNull(String specificId) {
 		if (specificId == null) Utils.error(new NullPointerException());
-		return idObjects.get(specificId);
+		return registry.get(specificId);
 	}
 
 	/**
@@ -116,9 +582,9 @@ public class Serializer {
 	 * @see #registerId(Object)
 	 * @see #getObject(String)
 	 */
-	public synchronized String getRegisteredId(Object object) {
+	public String getRegisteredId(Object object) {
 		if (object == null) Utils.error(new NullPointerException());
-		String id = objectIds.get(object);
+		String id = registry.getId(object);
 		if (id != null)
 			return id;
 		return Utils.error(object.toString() + " has no id", null);
@@ -131,18 +597,17 @@ public class Serializer {
 	 * @return The generated or existing id.
 	 * @see #registerId(Object, String)
 	 */
-	public synchronized String registerId(Object object) {
+	public String registerId(Object object) {
 		if (object == null) Utils.error(new NullPointerException());
-		String id = objectIds.get(object);
+		String id = registry.getId(object);
 		if (id != null)
 			return id;
 		id = UUID.randomUUID().toString();
-		while (objectIds.containsKey(id))
+		while (registry.get(id) != null)
 			id = UUID.randomUUID().toString();
-		idObjects.put(id, object);
-		objectIds.put(object, id);
+		String previousId = registry.putIfUnregistered(object, id);
 		//Utils.log("Registered for monitoring " + id + " " +object.getClass().getName());
-		return id;
+		return previousId != null ? previousId : id;
 	}
 	
 	/**
@@ -153,36 +618,203 @@ public class Serializer {
 	 * @throws Exception If the id is already in use.
 	 * @see #registerId(Object)
 	 */
-	public synchronized String registerId(Object object, String specificId) {
+	public String registerId(Object object, String specificId) {
 		if (object == null) Utils.error(new NullPointerException());
-		if (objectIds.get(object) != null && idObjects.get(specificId) != object)
+		String id = registry.getId(object);
+		if (id != null && !id.equals(specificId))
 			Utils.error("Explicitly defined ID already in use by a differet object: " +specificId);
-		idObjects.put(specificId, object);
-		objectIds.put(object, specificId);
+		registry.put(object, specificId);
 		//Utils.log("Registered for monitoring " + specificId + " " +object.getClass().getName());
 		return specificId;
 	}
 	
+	/**
+	 * Checks whether a registered object has been saved in the storage.
+	 * @param object The given object
+	 * @return Whether the object's file exists
+	 */
+	public boolean isStored(Object object) {
+		String id = registry.getId(object);
+		if (id == null)
+			return Utils.error(new IllegalArgumentException(), false);
+		return writeBehindStorage.fileExists(id + ".json");
+	}
+
 	/**
 	 * Removes the storage file associated with the given object.
 	 * This does not affect whether the object is managed by the serializer and may be saved
-	 * by future {@link #save(Object)} calls.
+	 * by future {@link #save(Object)} calls. The object is marked as dirty.
 	 * @param object The object to remove from storage.
 	 * @throws Exception on removal failure.
 	 */
-	public synchronized void removeFromStorage(Object object) {
+	public void removeFromStorage(Object object) {
+		ObjectRegistry.Entry entry = registry.getEntry(object);
+		if (entry == null) {
+			Utils.error("Failed to remove object: " + object + " is not registered");
+			return;
+		}
+		synchronized (entry) {
+			try {
+				if (isInSegmentedStore(object)) {
+					synchronized (segmentedStore) {
+						int segment = segmentedStore.remove(entry.id);
+						if (segment != -1)
+							saveSegments(Collections.singleton(segment));
+					}
+				}
+				writeBehindStorage.deleteFile(entry.id + ".json");
+				writeBehindStorage.deleteFile(entry.id + ".delta");
+				prefetched.remove(entry.id);
+				pendingPrefetches.remove(entry.id);
+				markDirty(object);
+			} catch (Exception e) {
+				Utils.error("Failed to remove object: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Marks a registered object as modified, so that it is written by the next {@link #saveAllDirty()}.
+	 * This does nothing for objects that are not registered, as these are saved only within the files of other objects.
+	 * Since the modification is unknown, the object's file will be fully rewritten even if delta persistence is enabled.
+	 * @param object The modified object
+	 * @see #isDirty(Object)
+	 * @see #recordChange(Object, String)
+	 */
+	public void markDirty(Object object) {
+		ObjectRegistry.Entry entry = registry.getEntry(object);
+		if (entry != null) {
+			synchronized (entry) {
+				entry.dirty = true;
+				entry.pendingDelta = null;
+			}
+		}
+	}
+
+	/**
+	 * Marks a registered object as modified by a change that can be appended to its delta file.
+	 * If delta persistence is disabled, this is equivalent to {@link #markDirty(Object)}.
+	 * @param object The modified object
+	 * @param change A single-line description of the change, which the object needs to be able to
+	 *  replay when loading the contents obtained by {@link #loadDelta(Object)}
+	 * @see #setDeltaPersistence(boolean)
+	 */
+	public void recordChange(Object object, String change) {
+		ObjectRegistry.Entry entry = registry.getEntry(object);
+		if (entry == null)
+			return;
+		synchronized (entry) {
+			if (!deltaPersistence)
+				entry.pendingDelta = null;
+			else if (entry.pendingDelta != null)
+				entry.pendingDelta.add(change);
+			entry.dirty = true;
+		}
+	}
+
+	/**
+	 * Loads the changes appended to the delta file of a registered object since its file was last written.
+	 * This should be called immediately after reloading the object. Delta files identify the size and checksum
+	 * of the object file their changes apply to, so that changes already included in a rewritten file (e.g. if the
+	 * application crashed after rewriting the file but before deleting its delta file) are not applied again.
+	 * Delta files whose changes all apply to other object files are deleted.
+	 * @param object The given object
+	 * @return The changes recorded by {@link #recordChange(Object, String)}, one per line, or an empty
+	 *  string if there are no such changes
+	 */
+	public String loadDelta(Object object) {
+		ObjectRegistry.Entry entry = registry.getEntry(object);
+		if (entry == null)
+			return Utils.error(new IllegalArgumentException(), "");
+		synchronized (entry) {
+			try {
+				String delta = writeBehindStorage.fileExists(entry.id + ".delta") ? writeBehindStorage.loadFromFile(entry.id + ".delta") : "";
+				entry.deltaSize = delta.length();
+				if (!delta.startsWith(DELTA_BASE_PREFIX))
+					return delta;
+				String base = getDeltaBase(entry);
+				StringBuilder changes = new StringBuilder();
+				boolean applies = false;
+				for (String line : delta.split("\n")) {
+					if (line.startsWith(DELTA_BASE_PREFIX))
+						applies = line.equals(base);
+					else if (applies && !line.isEmpty())
+						changes.append(line).append('\n');
+				}
+				if (changes.length() == 0 && delta.indexOf(base) == -1) {
+					Utils.log("Deleted outdated delta of " + entry.id);
+					writeBehindStorage.deleteFile(entry.id + ".delta");
+					entry.deltaSize = 0;
+				}
+				return changes.toString();
+			}
+			catch (Exception e) {
+				return Utils.error(e, "");
+			}
+		}
+	}
+
+	/**
+	 * @return The line of delta files that identifies the current file of the object with the given registry entry
+	 */
+	private static String getDeltaBase(ObjectRegistry.Entry entry) {
+		return DELTA_BASE_PREFIX + entry.storedSize + " " + Long.toHexString(entry.storedChecksum);
+	}
+
+	/**
+	 * Checks whether the pending changes of an object can be appended to its delta file.
+	 * Should be called while holding the lock of the object's registry entry.
+	 */
+	private boolean canAppendDelta(ObjectRegistry.Entry entry) {
+		if (!deltaPersistence || entry.pendingDelta == null || entry.storedSize == 0)
+			return false;
+		long pendingSize = 0;
+		for (String change : entry.pendingDelta)
+			pendingSize += change.length() + 1;
+		return entry.deltaSize + pendingSize <= deltaCompactionRatio * entry.storedSize;
+	}
+
+	/**
+	 * Appends the pending changes of an object to its delta file.
+	 * Should be called while holding the lock of the object's registry entry.
+	 */
+	private boolean appendDelta(ObjectRegistry.Entry entry) {
 		try {
-			storage.deleteFile(objectIds.get(object) + ".json");
-		} catch (Exception e) {
-			Utils.error("Failed to remove object: " + e.toString());
+			StringBuilder builder = new StringBuilder();
+			if (entry.deltaSize == 0)
+				builder.append(getDeltaBase(entry)).append('\n');
+			for (String change : entry.pendingDelta)
+				builder.append(change).append('\n');
+			writeBehindStorage.appendToFile(entry.id + ".delta", builder.toString());
+			entry.deltaSize += builder.length();
+			entry.pendingDelta.clear();
+			entry.dirty = false;
+			Utils.log("Appended " + builder.length() + " bytes to delta of " + entry.id);
+			return true;
 		}
+		catch (Exception e) {
+			return Utils.error(e, false);
+		}
+	}
+
+	/**
+	 * Checks whether an object has been modified since it was last saved or loaded. Newly registered
+	 * objects are considered modified, with the exception of those registered while deserializing
+	 * references to them, as the latter already reside in storage.
+	 * @param object The given object
+	 * @return Whether the object needs to be saved, <code>true</code> if it is not registered
+	 * @see #markDirty(Object)
+	 */
+	public boolean isDirty(Object object) {
+		ObjectRegistry.Entry entry = registry.getEntry(object);
+		return entry == null || entry.dirty;
 	}
 
 	@SuppressWarnings("unchecked")
 	protected Object deserializeToNewObject(Object jsonValue, Type defaultClass,
-			int levelsOfLoadingDemand, ArrayList<Object> parents)
+			int levelsOfLoadingDemand, ParentStack parents)
 			throws Exception {
-		if (jsonValue == null || jsonValue.toString().equals("null")) 
+		if (jsonValue == null || JSONObject.NULL.equals(jsonValue))
 			return null;
 
 		if (jsonValue instanceof JSONObject &&
@@ -193,27 +825,45 @@ public class Serializer {
 					((JSONObject) jsonValue).get("@value"), primitiveType,
 					levelsOfLoadingDemand, parents);
 		}
-		if (jsonValue instanceof String) {
+		if (jsonValue instanceof JSONObject &&
+				((JSONObject) jsonValue).has("@packed")) {
+			Object array = PackedArrays.unpack(
+					(String) ((JSONObject) jsonValue).get("@packed"),
+					(String) ((JSONObject) jsonValue).get("@data"));
+			if (defaultClass instanceof ParameterizedType) {
+				List<Object> list = (List<Object>) ((Class<?>) ((ParameterizedType) defaultClass).getRawType()).newInstance();
+				PackedArrays.addAll(array, list);
+				return list;
+			}
+			return array;
+		}
+		if (jsonValue instanceof String || jsonValue instanceof Number || jsonValue instanceof Boolean) {
 			if (defaultClass == String.class)
-				return (String) jsonValue;
+				return canonicalize(jsonValue.toString(), parents);
 			if (defaultClass == Boolean.class || defaultClass == boolean.class)
-				return new Boolean(Boolean.parseBoolean((String) jsonValue));
+				return Boolean.valueOf(toBoolean(jsonValue));
 			if (defaultClass == Long.class || defaultClass == long.class)
-				return new Long(Long.parseLong((String) jsonValue));
+				return Long.valueOf(toLong(jsonValue));
 			if (defaultClass == Integer.class || defaultClass == int.class)
-				return new Integer(Integer.parseInt((String) jsonValue));
+				return Integer.valueOf(toInt(jsonValue));
 			if (defaultClass == Double.class || defaultClass == double.class)
-				return new Double(Double.parseDouble((String) jsonValue));
+				return Double.valueOf(toDouble(jsonValue));
 			if (defaultClass == Float.class || defaultClass == float.class)
-				return new Float(Float.parseFloat((String) jsonValue));
+				return Float.valueOf(toFloat(jsonValue));
+			if (defaultClass == Short.class || defaultClass == short.class)
+				return Short.valueOf((short) toInt(jsonValue));
+			if (defaultClass == Byte.class || defaultClass == byte.class)
+				return Byte.valueOf((byte) toInt(jsonValue));
+			if (defaultClass == Character.class || defaultClass == char.class)
+				return Character.valueOf(jsonValue.toString().charAt(0));
 			return Utils
 					.error("Unknown primitive datatype: " + defaultClass, null);
 		}
 		if (jsonValue instanceof JSONObject &&
-				((JSONObject) jsonValue).has("@id")
-				&& idObjects
-				.containsKey((String) ((JSONObject) jsonValue).get("@id"))) {
-			return idObjects.get((String) ((JSONObject) jsonValue).get("@id"));
+				((JSONObject) jsonValue).has("@id")) {
+			Object registered = registry.get((String) ((JSONObject) jsonValue).get("@id"));
+			if (registered != null)
+				return registered;
 		}
 		if (jsonValue instanceof JSONArray) {
 			if (defaultClass instanceof Class) {
@@ -222,35 +872,31 @@ public class Serializer {
 				if(componentType==null)
 					componentType = String.class;
 				Object list = Array.newInstance(componentType, array.length());
-				parents.add(list);
+				parents.push(list);
 				for (int i = 0; i < array.length(); i++)
 					Array.set(list, i,
 							deserializeToNewObject(array.get(i), componentType,
 									levelsOfLoadingDemand, parents));
-				parents.remove(list);
+				parents.pop();
 				return list;
 			} else {
 				List<?> list =
 						(List<?>) ((Class<?>) ((java.lang.reflect.ParameterizedType) defaultClass)
 								.getRawType()).newInstance();
 				JSONArray array = (JSONArray) jsonValue;
-				parents.add(list);
+				parents.push(list);
 				for (int i = 0; i < array.length(); i++)
 					((List<Object>) list)
 							.add(deserializeToNewObject(array.get(i),
 									((java.lang.reflect.ParameterizedType) defaultClass).getActualTypeArguments()[0], levelsOfLoadingDemand,
 									parents));
-				parents.remove(list);
+				parents.pop();
 				return list;
 			}
 		}
 		if (jsonValue instanceof JSONObject &&
 				((JSONObject) jsonValue).has("@par")) {
-			//for(Object obj : parents)
-			//	System.out.println(obj.getClass().toString());
-			//System.out.println(parents.get(parents.size()-Integer.parseInt((String) ((JSONObject)jsonValue).get("@par"))).getClass().toString());
-			return parents.get(parents.size() - Integer.parseInt(
-					(String) ((JSONObject) jsonValue).get("@par")));
+			return parents.get(toInt(((JSONObject) jsonValue).get("@par")));
 		}
 		if (jsonValue instanceof JSONObject && ((JSONObject) jsonValue).has("@class")) {
 			Class<?> valueType = Class.forName((String) ((JSONObject) jsonValue).get("@class"));
@@ -262,11 +908,10 @@ public class Serializer {
 			Object value = constructor.newInstance();
 			constructor.setAccessible(prevConstructorAccessible);
 			if (jsonValue instanceof JSONObject && ((JSONObject) jsonValue).has("@id")) {
-				if (!idObjects.containsKey(value)) {
-					registerId(value, (String) ((JSONObject) jsonValue).get("@id"));
-					if (levelsOfLoadingDemand > 0)
-						reload(value, levelsOfLoadingDemand - 1);
-				}
+				registerId(value, (String) ((JSONObject) jsonValue).get("@id"));
+				registry.getEntry(value).dirty = false;
+				if (levelsOfLoadingDemand > 0)
+					reload(value, levelsOfLoadingDemand - 1);
 			} else {
 				//do not add to parents here (this is done in the called function)
 				deserializeInstantiatedObject(jsonValue, value, levelsOfLoadingDemand, parents);
@@ -277,20 +922,20 @@ public class Serializer {
 				(defaultClass==null || ((java.lang.reflect.ParameterizedType) defaultClass).getRawType() == HashMap.class)) {
 			HashMap<?, ?> map = defaultClass==null?new HashMap<String, Object>():
 					(HashMap<?, ?>) ((Class<?>) ((java.lang.reflect.ParameterizedType) defaultClass).getRawType()).newInstance();
-			Class<?> defaultMapType =
-					(Class<?>) ((java.lang.reflect.ParameterizedType) defaultClass).getActualTypeArguments()[1];
-			parents.add(map);
+			Type defaultMapType = defaultClass==null ? null :
+					((java.lang.reflect.ParameterizedType) defaultClass).getActualTypeArguments()[1];
+			parents.push(map);
 			Iterator<String> keys = ((JSONObject) jsonValue).keys();
 			while (keys.hasNext()) {
 				String entry = keys.next();
-				((HashMap<String, Object>) map).put(entry,
+				((HashMap<String, Object>) map).put(canonicalize(entry, parents),
 						deserializeToNewObject(
 								((JSONObject) jsonValue).get(entry),
 								defaultMapType,
 								levelsOfLoadingDemand,
 								parents));
 			}
-			parents.remove(map);
+			parents.pop();
 			return map;
 		}
 		//System.out.println(defaultClass.toString());
@@ -298,7 +943,7 @@ public class Serializer {
 	}
 
 	protected void deserializeInstantiatedObject(Object json, Object object,
-			int levelsOfLoadingDemand, ArrayList<Object> parents) {
+			int levelsOfLoadingDemand, ParentStack parents) {
 		if (json == null || object == null)
 			return;
 		if (!(json instanceof JSONObject)) {
@@ -306,34 +951,42 @@ public class Serializer {
 			return;
 		}
 		JSONObject classObject = (JSONObject) json;
+		parents.push(object);
+		int depth = parents.size();
+		boolean deduplicateStrings = parents.deduplicateStrings;
 		for (Field field : getAllFields(object.getClass())) {
 			String fieldName = field.getName();
 			if (classObject.has(fieldName)) {
+				parents.deduplicateStrings = stringTable != null && isDeduplicated(object.getClass(), field);
 				boolean prevAccessible = field.isAccessible();
 				field.setAccessible(true);
-				parents.add(object);
 				try {
-					field.set(object,
-							deserializeToNewObject(classObject.get(fieldName),
-									field.getGenericType(),
-									levelsOfLoadingDemand,
-									parents));
+					if (field.getType().isPrimitive())
+						setPrimitiveField(field, object, classObject.get(fieldName));
+					else
+						field.set(object,
+								deserializeToNewObject(classObject.get(fieldName),
+										field.getGenericType(),
+										levelsOfLoadingDemand,
+										parents));
 				} catch (Exception e) {
 					e.printStackTrace();
 					Utils.error("Deserialization error for field " +
 							object.getClass().toString() + "." +
 							field.getName() + " : " + e.toString());
+					parents.popTo(depth);
 				}
-				parents.remove(parents.size() - 1);
 				field.setAccessible(prevAccessible);
 			}
 		}
+		parents.deduplicateStrings = deduplicateStrings;
+		parents.pop();
 	}
 
 	@SuppressWarnings("unchecked")
 	protected Object serialize(Object object, Type wouldHaveSuggestedClass,
 			boolean convertToIdIfPossible,
-			HashSet<Object> objectsWithKnownClasses, ArrayList<Object> parents)
+			HashSet<String> objectsWithKnownClasses, ParentStack parents)
 			throws Exception {
 		if (object == null)
 			return null;
@@ -344,45 +997,62 @@ public class Serializer {
 				|| object instanceof Integer
 				|| object instanceof Double
 				|| object instanceof Float
+				|| object instanceof Short
+				|| object instanceof Byte
+				|| object instanceof Character
 				|| object instanceof Enum) {
-			if (wouldHaveSuggestedClass == null ||
-					!(wouldHaveSuggestedClass.getTypeName().replace("int", "Integer").replace("java.lang.", "")
-					.equalsIgnoreCase(object.getClass().getTypeName().replace("java.lang.", "")))) {
+			if (wouldHaveSuggestedClass == null || !isImpliedClass(wouldHaveSuggestedClass, object.getClass())) {
 				JSONObject classObject = new JSONObject();
 				classObject.put("@class", object.getClass().getTypeName().toString());
-				classObject.put("@value", object.toString());
+				classObject.put("@value", toJSONPrimitive(object));
 				return classObject;
 			}
-			return object.toString();
+			return toJSONPrimitive(object);
 		}
 		if (object instanceof List) {
-			parents.add(object);
+			Type elementType = wouldHaveSuggestedClass instanceof ParameterizedType
+					? ((ParameterizedType) wouldHaveSuggestedClass).getActualTypeArguments()[0] : null;
+			if (elementType instanceof Class && PackedArrays.isPackable((List<?>) object, (Class<?>) elementType)) {
+				String packedType = PackedArrays.getPackedType((Class<?>) elementType);
+				JSONObject packed = new JSONObject();
+				packed.put("@packed", packedType);
+				packed.put("@data", PackedArrays.pack((List<?>) object, packedType));
+				return packed;
+			}
+			parents.push(object);
 			JSONArray list = new JSONArray();
 			for (Object element : ((List<?>) object))
 				list.put(serialize(element, wouldHaveSuggestedClass==null?null:((java.lang.reflect.ParameterizedType) wouldHaveSuggestedClass).getActualTypeArguments()[0], true, objectsWithKnownClasses,
 						parents));
-			parents.remove(object);
+			parents.pop();
 			return list;
 		}
 		if (object.getClass().isArray()) {
+			Class<?> componentType = object.getClass().getComponentType();
+			if (componentType.isPrimitive() && PackedArrays.getPackedType(componentType) != null) {
+				JSONObject packed = new JSONObject();
+				packed.put("@packed", PackedArrays.getPackedType(componentType));
+				packed.put("@data", PackedArrays.pack(object));
+				return packed;
+			}
 			JSONArray list = new JSONArray();
-			parents.add(object);
+			parents.push(object);
 			for (int i = 0; i < Array.getLength(object); i++)
-				list.put(serialize(Array.get(object, i), object.getClass().getComponentType(), true, objectsWithKnownClasses, parents));
-			parents.remove(object);
+				list.put(serialize(Array.get(object, i), componentType, true, objectsWithKnownClasses, parents));
+			parents.pop();
 			return list;
 		}
 		else if (object instanceof Map) {
-			parents.add(object);
+			parents.push(object);
 			JSONObject map = new JSONObject();
 			for (String key : ((Map<String, ?>) object).keySet())
 				map.put(key.toString(), serialize(((Map<String, ?>) object).get(key), null, true, objectsWithKnownClasses, parents));
-			parents.remove(object);
+			parents.pop();
 			return map;
 		}
 
 		JSONObject classObject = new JSONObject();
-		String id = objectIds.get(object);
+		String id = registry.getId(object);
 		if (id != null) {
 			classObject.put("@id", id);
 			if (!objectsWithKnownClasses.contains(id)) {
@@ -391,11 +1061,11 @@ public class Serializer {
 			}
 		}
 		if (id == null && parents.contains(object)) {
-			classObject.put("@par", "" + (parents.size() - parents.indexOf(object)));
+			classObject.put("@par", parents.getDistance(object));
 		}
 		else if (id == null || !convertToIdIfPossible) {
-			parents.add(object);
-			if (id == null && !objectsWithKnownClasses.contains(object))
+			parents.push(object);
+			if (id == null)
 				classObject.put("@class", object.getClass().getTypeName().toString());
 			for (Field field : getAllFields(object.getClass())) {
 				Serialization serializeable =
@@ -404,96 +1074,490 @@ public class Serializer {
 					continue;
 				boolean prevAccessible = field.isAccessible();
 				field.setAccessible(true);
-				classObject.put(field.getName(),
-						serialize(field.get(object), field.getGenericType(), true,
-								objectsWithKnownClasses, parents));
+				if (field.getType().isPrimitive())
+					putPrimitiveField(classObject, field, object);
+				else
+					classObject.put(field.getName(),
+							serialize(field.get(object), field.getGenericType(), true,
+									objectsWithKnownClasses, parents));
 				field.setAccessible(prevAccessible);
 			}
-			parents.remove(object);
+			parents.pop();
 		}
 		return classObject;
 	}
 
 	public synchronized void saveAllRegistered() {
-		for (Object object : objectIds.keySet())
-			if (enableSaving.getOrDefault(object, true))
-				save(object);
+		beginBatch();
+		try {
+			saveRegistered();
+		}
+		finally {
+			endBatch();
+		}
+	}
+
+	/**
+	 * Saves all registered objects that are allowed to be saved and have been modified since they were
+	 * last saved or loaded. Only one such call (or {@link #saveAllRegistered()} call) runs at a time. Statistics of skipped objects can be retrieved afterwards with
+	 * {@link #getLastSkippedFiles()} and {@link #getLastSkippedBytes()}. Objects whose changes are
+	 * appended to their delta files count as skipped, since their files are not rewritten.
+	 * Files are written as a single batch of the storage (see {@link Storage#beginBatch()}).
+	 * @see #saveAllRegistered()
+	 * @see #markDirty(Object)
+	 */
+	public synchronized void saveAllDirty() {
+		beginBatch();
+		try {
+			saveDirty();
+		}
+		finally {
+			endBatch();
+		}
+	}
+
+	private void beginBatch() {
+		writeBehindStorage.beginBatch();
+	}
+
+	private void endBatch() {
+		try {
+			writeBehindStorage.endBatch();
+		}
+		catch (Exception e) {
+			Utils.error(e);
+		}
+	}
+
+	private void saveRegistered() {
+		TreeSet<Integer> segments = new TreeSet<Integer>();
+		for (Object object : registry.getObjects()) {
+			ObjectRegistry.Entry entry = registry.getEntry(object);
+			if (entry != null && entry.savePermission) {
+				if (isInSegmentedStore(object))
+					segments.add(assignSegment(entry.id));
+				else
+					save(object);
+			}
+		}
+		if (!segments.isEmpty())
+			synchronized (segmentedStore) {
+				saveSegments(segments);
+			}
+	}
+
+	private void saveDirty() {
+		int savedFiles = 0;
+		int skippedFiles = 0;
+		long skippedBytes = 0;
+		TreeSet<Integer> segments = new TreeSet<Integer>();
+		for (Object object : registry.getObjects()) {
+			ObjectRegistry.Entry entry = registry.getEntry(object);
+			if (entry == null || !entry.savePermission)
+				continue;
+			if (entry.dirty && isInSegmentedStore(object)) {
+				segments.add(assignSegment(entry.id));
+				continue;
+			}
+			synchronized (entry) {
+				if (entry.dirty && canAppendDelta(entry)) {
+					appendDelta(entry);
+					skippedFiles++;
+					skippedBytes += entry.storedSize;
+				}
+				else if (entry.dirty) {
+					save(object);
+					savedFiles++;
+				}
+				else {
+					skippedFiles++;
+					skippedBytes += entry.storedSize;
+				}
+			}
+		}
+		if (!segments.isEmpty())
+			synchronized (segmentedStore) {
+				if (saveSegments(segments))
+					savedFiles++;
+			}
+		lastSavedFiles = savedFiles;
+		lastSkippedFiles = skippedFiles;
+		lastSkippedBytes = skippedBytes;
+		Utils.log("Saved " + lastSavedFiles + " modified files, skipped " + lastSkippedFiles
+				+ " unmodified files (" + lastSkippedBytes + " bytes)");
+	}
+
+	/**
+	 * Saves the given object only if it has been modified since it was last saved or loaded.
+	 * If possible, changes are appended to the object's delta file instead.
+	 * @param object The object to save
+	 * @return Whether the object is stored without errors, even if it did not need to be saved
+	 * @see #isDirty(Object)
+	 * @see #setDeltaPersistence(boolean)
+	 */
+	public boolean saveIfDirty(Object object) {
+		ObjectRegistry.Entry entry = registry.getEntry(object);
+		if (entry == null)
+			return save(object);
+		synchronized (entry) {
+			if (!entry.dirty)
+				return true;
+			if (entry.savePermission && canAppendDelta(entry))
+				return appendDelta(entry);
+			return save(object);
+		}
 	}
 	
 
-	public synchronized boolean save(String objectName, Object object) {
+	public boolean save(String objectName, Object object) {
 		registerId(object, objectName);
 		return save(object);
 	}
 
-	public synchronized boolean save(Object object) {
-		if (!enableSaving.getOrDefault(object, true))
-			return Utils.error("Not allowed to save: " + objectIds.get(object) +" " + object.getClass().getName(), false);
+	public boolean save(Object object) {
+		ObjectRegistry.Entry entry = registry.getEntry(object);
+		if (entry != null && !entry.savePermission)
+			return Utils.error("Not allowed to save: " + entry.id +" " + object.getClass().getName(), false);
+		if (isInSegmentedStore(object)) {
+			int segment = assignSegment(registerId(object));
+			synchronized (segmentedStore) {
+				return saveSegments(Collections.singleton(segment));
+			}
+		}
+		String id = registerId(object);
+		entry = registry.getEntry(object);
+		synchronized (entry) {
+			try {
+				long tic = System.nanoTime();
+				writeFile(entry, serialize(object, null, false, new HashSet<String>(), new ParentStack()));
+				prefetched.remove(id);
+				pendingPrefetches.remove(id);
+				// a delta left behind by a crash at this point no longer matches the new file and is ignored
+				if (entry.deltaSize != 0)
+					writeBehindStorage.deleteFile(id + ".delta");
+				entry.dirty = false;
+				entry.deltaSize = 0;
+				entry.pendingDelta = new ArrayList<String>();
+				
+				Utils.log("Saved " + id + " " +
+						object.getClass().getName() + " (" +
+						(System.nanoTime() - tic) / 1000.0 / 1000.0 + " ms)");
+				return true;
+			}
+			catch (Exception e) {
+				//e.printStackTrace();
+				return Utils.error(e, false);
+			}
+		}
+	}
+
+	/**
+	 * Writes a serialized object to its file by streaming its UTF-8 encoding to the storage, and records
+	 * the number of written bytes and their checksum in the object's registry entry.
+	 */
+	private void writeFile(ObjectRegistry.Entry entry, Object serialized) throws Exception {
+		CountingOutputStream outputStream = new CountingOutputStream(writeBehindStorage.openOutputStream(entry.id + ".json"));
+		Writer writer = new OutputStreamWriter(outputStream, Storage.UTF8);
+		try {
+			if (serialized instanceof JSONObject)
+				((JSONObject) serialized).write(writer);
+			else
+				writer.write(serialized.toString());
+		}
+		finally {
+			writer.close();
+		}
+		entry.storedSize = outputStream.count;
+		entry.storedChecksum = outputStream.checksum.getValue();
+	}
+
+	/**
+	 * Reads a JSON object from a file by parsing the storage's stream of the file.
+	 */
+	private PrefetchedFile readFile(String fileName) throws Exception {
+		CountingInputStream inputStream = new CountingInputStream(writeBehindStorage.openInputStream(fileName));
 		try {
-			long tic = System.nanoTime();
-			registerId(object);
-			JSONObject jsonSerialized = (JSONObject) serialize(object, null, false, new HashSet<Object>(), new ArrayList<Object>());
-			storage.saveToFile(objectIds.get(object) + ".json", jsonSerialized.toString());
-			
-			Utils.log("Saved " + objectIds.get(object) + " " +
-					object.getClass().getName() + " (" +
-					(System.nanoTime() - tic) / 1000.0 / 1000.0 + " ms)");
-			return true;
+			JSONObject json = new JSONObject(new JSONTokener(new InputStreamReader(inputStream, Storage.UTF8)));
+			// consume any trailing bytes, so that the checksum covers the whole file
+			byte[] buffer = new byte[256];
+			while (inputStream.read(buffer, 0, buffer.length) >= 0);
+			return new PrefetchedFile(json, inputStream.count, inputStream.checksum.getValue());
 		}
-		catch (Exception e) {
-			//e.printStackTrace();
-			return Utils.error(e, false);
+		finally {
+			inputStream.close();
 		}
 	}
 
-	public synchronized Object deserializeFromString(String serializedObject) {
+	public Object deserializeFromString(String serializedObject) {
 		if (serializedObject.isEmpty())
 			return null;
 		try {
 			JSONObject jsonObject =
 					new JSONObject(serializedObject);
-			return deserializeToNewObject(jsonObject, null, 0,
-					new ArrayList<Object>());
+			ParentStack parents = new ParentStack();
+			// strings outside fields are canonicalized only if canonicalization is not restricted
+			parents.deduplicateStrings = deduplicatedTypes.isEmpty() && deduplicatedFields.isEmpty();
+			return deserializeToNewObject(jsonObject, null, 0, parents);
 		} catch (Exception e) {
 			Utils.error(e);
 			return null;
 		}
 	}
 
-	public synchronized String serializeToString(Object object) {
+	public String serializeToString(Object object) {
 		try {
 			if (object == null)
 				return "";
-			return serialize(object, null, false, new HashSet<Object>(),
-					new ArrayList<Object>()).toString();
+			return serialize(object, null, false, new HashSet<String>(),
+					new ParentStack()).toString();
 		} catch (Exception e) {
 			return Utils.error(e, null);
 		}
 	}
 	
 
-	public synchronized boolean reload(String objectId, Object object) {
-		registerId(objectId);
+	public boolean reload(String objectId, Object object) {
+		registerId(object, objectId);
 		return reload(object, 0);
 	}
 
-	public synchronized boolean reload(Object object) {
+	public boolean reload(Object object) {
 		return reload(object, 0);
 	}
 
-	public synchronized boolean reload(Object object, int levelsOfLoadingDemand) {//zero levels to NOT iteratively reload
+	/**
+	 * Makes registered objects of the given class be saved in a single segmented store instead of each
+	 * being saved in its own file. If the store already exists, all of its records are read at once and are
+	 * used by subsequent {@link #reload(Object)} calls. Saving modified objects rewrites only the store segments
+	 * that contain them. Objects already saved in their own files are moved into the store once saved again,
+	 * which happens on the next {@link #saveAllDirty()} for objects that are currently registered.
+	 * This does nothing if a segmented store is already in use.
+	 * @param storedClass The class of objects to keep in the store
+	 * @param name The name of the store, which prefixes the store's files
+	 */
+	public synchronized void useSegmentedStore(Class<?> storedClass, String name) {
+		if (segmentedStore != null)
+			return;
+		SegmentedStore store = new SegmentedStore(writeBehindStorage, name, storedClass);
+		try {
+			store.load();
+		}
+		catch (Exception e) {
+			Utils.error(e);
+			return;
+		}
+		for (Object object : registry.getObjects()) {
+			ObjectRegistry.Entry entry = registry.getEntry(object);
+			if (entry != null && store.isStored(object) && !store.contains(entry.id)) {
+				store.addFlatFile(entry.id);
+				entry.dirty = true;
+			}
+		}
+		segmentedStore = store;
+	}
+
+	/**
+	 * Checks whether a segmented store with the given name exists in the serializer's storage.
+	 * @param name The name of the store
+	 * @return Whether the store exists
+	 * @see #useSegmentedStore(Class, String)
+	 */
+	public boolean hasSegmentedStore(String name) {
+		return SegmentedStore.exists(writeBehindStorage, name);
+	}
+
+	private boolean isInSegmentedStore(Object object) {
+		SegmentedStore store = segmentedStore;
+		return store != null && store.isStored(object);
+	}
+
+	private int assignSegment(String id) {
+		synchronized (segmentedStore) {
+			return segmentedStore.getOrAssignSegment(id);
+		}
+	}
+
+	/**
+	 * Writes the given segments of the segmented store, marking the objects in them as saved.
+	 * Should be called while holding the lock of the segmented store.
+	 * @param segments The segments to write
+	 * @return Whether the segments were written without errors
+	 */
+	private boolean saveSegments(Collection<Integer> segments) {
 		try {
 			long tic = System.nanoTime();
-			JSONObject jsonObject = new JSONObject(storage.loadFromFile(objectIds.get(object) + ".json"));
-			deserializeInstantiatedObject(jsonObject, object, levelsOfLoadingDemand, new ArrayList<Object>());
-			
-			Utils.log("Loaded " + objectIds.get(object) + " " +object.getClass().getName() + " (" +
-					(System.nanoTime() - tic) / 1000.0 / 1000.0 + " ms)");
+			HashMap<Integer, ArrayList<String>> segmentRecords = new HashMap<Integer, ArrayList<String>>();
+			ArrayList<ObjectRegistry.Entry> entries = new ArrayList<ObjectRegistry.Entry>();
+			for (int segment : segments) {
+				ArrayList<String> records = new ArrayList<String>();
+				for (String id : segmentedStore.getIds(segment)) {
+					Object object = registry.get(id);
+					if (object == null) {
+						segmentedStore.remove(id);
+						continue;
+					}
+					String record = serialize(object, null, false, new HashSet<String>(), new ParentStack()).toString();
+					records.add(record);
+					ObjectRegistry.Entry entry = registry.getEntry(object);
+					entry.storedSize = record.length();
+					entries.add(entry);
+				}
+				segmentRecords.put(segment, records);
+			}
+			segmentedStore.write(segmentRecords);
+			for (ObjectRegistry.Entry entry : entries)
+				entry.dirty = false;
+			Utils.log("Saved " + segments.size() + " store segments with " + entries.size() + " objects ("
+					+ (System.nanoTime() - tic) / 1000.0 / 1000.0 + " ms)");
 			return true;
-		} catch (Exception e) {
-			Utils.log(e);
+		}
+		catch (Exception e) {
+			return Utils.error(e, false);
+		}
+	}
+
+	/**
+	 * Reads and parses the files of the given registered objects in parallel, so that subsequent
+	 * {@link #reload(Object)} calls for them do not need to access the storage. This does not
+	 * modify the registered objects or the registry and returns only after all files have been
+	 * read. Objects that are saved or removed from storage before being reloaded are not affected
+	 * by previously prefetched files.
+	 * @param objects The registered objects whose files to prefetch
+	 * @param executor The executor that reads the files, whose size bounds the number of parallel reads
+	 * @return The number of prefetched files
+	 * @see #clearPrefetched()
+	 */
+	public int prefetch(Collection<?> objects, ExecutorService executor) {
+		ArrayList<String> ids = new ArrayList<String>();
+		for (Object object : objects) {
+			String id = registry.getId(object);
+			if (id != null && !prefetched.containsKey(id) && !isInSegmentedStore(object))
+				ids.add(id);
+		}
+		long tic = System.nanoTime();
+		ArrayList<Future<PrefetchedFile>> futures = new ArrayList<Future<PrefetchedFile>>();
+		for (String id : ids)
+			futures.add(executor.submit(() -> readFile(id + ".json")));
+		int count = 0;
+		for (int i = 0; i < ids.size(); i++) {
+			try {
+				prefetched.put(ids.get(i), futures.get(i).get());
+				count++;
+			}
+			catch (Exception e) {
+				// the file will be read again (and the error reported) when reloading the object
+				Utils.log(e);
+			}
+		}
+		Utils.log("Prefetched " + count + " files (" + (System.nanoTime() - tic) / 1000.0 / 1000.0 + " ms)");
+		return count;
+	}
+
+	/**
+	 * Starts reading and parsing the files of the given registered objects on the I/O executor of the
+	 * serializer's storage (see {@link Storage#loadFromFileAsync(String)}) and returns immediately, so that
+	 * the caller can keep working (e.g. deserializing objects whose files have already been read) while files
+	 * are read. Subsequent {@link #reload(Object)} calls for the objects wait for their files to be read instead of
+	 * reading them again. Objects that are saved or removed from storage before being reloaded are not affected
+	 * by files prefetched for them.
+	 * @param objects The registered objects whose files to prefetch
+	 * @return A future that completes once all files have been read, with the number of successfully read files
+	 * @see #prefetch(Collection, ExecutorService)
+	 * @see #clearPrefetched()
+	 */
+	public CompletableFuture<Integer> prefetchAsync(Collection<?> objects) {
+		final ArrayList<CompletableFuture<PrefetchedFile>> futures = new ArrayList<CompletableFuture<PrefetchedFile>>();
+		for (Object object : objects) {
+			String id = registry.getId(object);
+			if (id == null || prefetched.containsKey(id) || pendingPrefetches.containsKey(id) || isInSegmentedStore(object))
+				continue;
+			String fileName = id + ".json";
+			CompletableFuture<PrefetchedFile> future = writeBehindStorage.runAsync(() -> readFile(fileName));
+			pendingPrefetches.put(id, future);
+			futures.add(future);
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).handle((result, exception) -> {
+			int count = 0;
+			for (CompletableFuture<PrefetchedFile> future : futures)
+				if (!future.isCompletedExceptionally())
+					count++;
+			return count;
+		});
+	}
+
+	/**
+	 * Waits for the file of an object prefetched by {@link #prefetchAsync(Collection)}, if any, to be read.
+	 * @param id The object's identifier
+	 * @return The read file, <code>null</code> if the file was not prefetched or could not be read
+	 */
+	private PrefetchedFile takePendingPrefetch(String id) {
+		CompletableFuture<PrefetchedFile> future = pendingPrefetches.remove(id);
+		if (future == null)
+			return null;
+		try {
+			return future.get();
+		}
+		catch (ExecutionException e) {
+			// the file will be read again (and the error reported) when reloading the object
+			Utils.log(e.getCause());
+			return null;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Discards all files prefetched by {@link #prefetch(Collection, ExecutorService)} or
+	 * {@link #prefetchAsync(Collection)} that have not been used for reloading objects.
+	 */
+	public void clearPrefetched() {
+		prefetched.clear();
+		pendingPrefetches.clear();
+	}
+
+	public boolean reload(Object object, int levelsOfLoadingDemand) {//zero levels to NOT iteratively reload
+		ObjectRegistry.Entry entry = registry.getEntry(object);
+		if (entry == null) {
+			Utils.log(object + " has no id");
 			return false;
 		}
+		synchronized (entry) {
+			try {
+				long tic = System.nanoTime();
+				String id = entry.id;
+				PrefetchedFile file = prefetched.remove(id);
+				if (file == null)
+					file = takePendingPrefetch(id);
+				boolean movedToStore = false;
+				if (file == null && isInSegmentedStore(object)) {
+					synchronized (segmentedStore) {
+						JSONObject record = segmentedStore.takeRecord(id);
+						if (record != null)
+							file = new PrefetchedFile(record, 0, 0);
+						else {
+							movedToStore = true;
+							segmentedStore.addFlatFile(id);
+						}
+					}
+				}
+				if (file == null)
+					file = readFile(id + ".json");
+				deserializeInstantiatedObject(file.json, object, levelsOfLoadingDemand, new ParentStack());
+				entry.dirty = movedToStore;
+				entry.storedSize = file.size;
+				entry.storedChecksum = file.checksum;
+				entry.pendingDelta = new ArrayList<String>();
+				
+				Utils.log("Loaded " + id + " " +object.getClass().getName() + " (" +
+						(System.nanoTime() - tic) / 1000.0 / 1000.0 + " ms)");
+				return true;
+			} catch (Exception e) {
+				Utils.log(e);
+				return false;
+			}
+		}
 	}
 
 	/**
@@ -506,11 +1570,12 @@ public class Serializer {
 	 * @throws RuntimeException if the given object is not registered, for example with {@link #registerId(Object)}
 	 * @see #saveAllRegistered()
 	 */
-	public synchronized void setSavePermission(Object object, boolean allowSave) {
-		if (!objectIds.containsKey(object))
+	public void setSavePermission(Object object, boolean allowSave) {
+		ObjectRegistry.Entry entry = registry.getEntry(object);
+		if (entry == null)
 			Utils.error(new IllegalArgumentException());
 		else
-			enableSaving.put(object, allowSave);
+			entry.savePermission = allowSave;
 	}
 
 	/**
@@ -519,10 +1584,8 @@ public class Serializer {
 	 *
 	 * @param object The object to remove
 	 */
-	public synchronized void unregister(Object object) {
-		String id = objectIds.get(object);
-		objectIds.remove(object);
-		idObjects.remove(id);
+	public void unregister(Object object) {
+		String id = registry.remove(object);
 		Utils.log("Unregistered " + id + " " + object.getClass().getName());
 	}
 
@@ -532,7 +1595,7 @@ public class Serializer {
 	 */
 	public void removePreviousSaved() {
 		try {
-			storage.deleteAll();
+			writeBehindStorage.deleteAll();
 		}
 		catch (Exception e) {
 			Utils.error(e);
@@ -0,0 +1,676 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.io.ByteArrayOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * This class implements an immutable single-file snapshot of a {@link ContextualEgoNetwork}, which is intended for
+ * read-mostly workloads (e.g. analytics) that do not need to modify networks. Snapshots are written by
+ * {@link #export(ContextualEgoNetwork, String)} and opened by {@link #open(String)}, which memory-maps the snapshot file
+ * instead of parsing it. Hence, opening a snapshot takes constant time and its contents are read only when accessed.
+ * <p>
+ * Snapshot files have a fixed little-endian binary layout comprising a header, a node table, a context table,
+ * a compressed sparse row (CSR) adjacency of each context, columnar interaction arrays and a heap of UTF-8 strings.
+ * Nodes, contexts, edges and interactions are accessed through lightweight read-only views, which mirror the read methods of
+ * {@link Node}, {@link Context}, {@link Edge} and {@link Interaction} respectively. Views only hold their position in the
+ * snapshot, and methods that access interaction columns by index (e.g. {@link EdgeView#getInteractionStartTime(int)})
+ * do not allocate any objects at all. Data objects of nodes, contexts and interactions are deserialized on demand.
+ * <p>
+ * Snapshot files are limited to 2GB.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+public final class Snapshot {
+	private static final byte[] MAGIC = {'C', 'E', 'N', 'S', 'N', 'A', 'P', 0};
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 128;
+	private static final int NODE_ENTRY_SIZE = 16;
+	private static final int CONTEXT_ENTRY_SIZE = 24;
+	private static final byte STRING_DATA = 'S';
+	private static final byte SERIALIZED_DATA = 'J';
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer buffer;
+	private final int nodeCount;
+	private final int contextCount;
+	private final long nodesPosition;
+	private final long contextsPosition;
+	private final long contextNodesPosition;
+	private final long rowPointersPosition;
+	private final long edgeSourcesPosition;
+	private final long edgeDestinationsPosition;
+	private final long interactionPointersPosition;
+	private final long interactionStartsPosition;
+	private final long interactionDurationsPosition;
+	private final long interactionDataOffsetsPosition;
+	private final long interactionDataLengthsPosition;
+	private final long heapPosition;
+	private Serializer dataSerializer = null;
+
+	private Snapshot(ByteBuffer buffer) {
+		this.buffer = buffer;
+		for (int i = 0; i < MAGIC.length; i++)
+			if (buffer.get(i) != MAGIC[i])
+				Utils.error("Not a contextual ego network snapshot");
+		if (buffer.getInt(8) != VERSION)
+			Utils.error("Unsupported snapshot version: " + buffer.getInt(8));
+		nodeCount = buffer.getInt(12);
+		contextCount = buffer.getInt(16);
+		nodesPosition = buffer.getLong(32);
+		contextsPosition = buffer.getLong(40);
+		contextNodesPosition = buffer.getLong(48);
+		rowPointersPosition = buffer.getLong(56);
+		edgeSourcesPosition = buffer.getLong(64);
+		edgeDestinationsPosition = buffer.getLong(72);
+		interactionPointersPosition = buffer.getLong(80);
+		interactionStartsPosition = buffer.getLong(88);
+		interactionDurationsPosition = buffer.getLong(96);
+		interactionDataOffsetsPosition = buffer.getLong(104);
+		interactionDataLengthsPosition = buffer.getLong(112);
+		heapPosition = buffer.getLong(120);
+	}
+
+	/**
+	 * Opens a snapshot file by memory-mapping it. The file is not read until its contents are accessed.
+	 * @param path The path of the snapshot file
+	 * @return The opened snapshot, <code>null</code> if it could not be opened
+	 */
+	public static Snapshot open(String path) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(path, "r");
+			try {
+				FileChannel channel = file.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				return new Snapshot(buffer.order(ByteOrder.LITTLE_ENDIAN));
+			}
+			finally {
+				// the mapping remains valid after closing the file
+				file.close();
+			}
+		}
+		catch (Exception e) {
+			return Utils.error(e, null);
+		}
+	}
+
+	/**
+	 * Exports a contextual ego network to a snapshot file. Contexts that are not loaded are temporarily loaded
+	 * and are unloaded again afterwards.
+	 * @param contextualEgoNetwork The network to export
+	 * @param path The path of the snapshot file, which is overwritten if it exists
+	 * @return Whether the snapshot was exported without errors
+	 */
+	public static boolean export(ContextualEgoNetwork contextualEgoNetwork, String path) {
+		try {
+			long tic = System.nanoTime();
+			Serializer serializer = contextualEgoNetwork.getSerializer();
+			ByteArrayOutputStream heap = new ByteArrayOutputStream();
+			ArrayList<Node> nodes = new ArrayList<Node>();
+			nodes.add(contextualEgoNetwork.getEgo());
+			nodes.addAll(contextualEgoNetwork.getAlters());
+			IdentityHashMap<Node, Integer> nodeIndexes = new IdentityHashMap<Node, Integer>();
+			int[] nodeEntries = new int[nodes.size() * 4];
+			for (int i = 0; i < nodes.size(); i++) {
+				nodeIndexes.put(nodes.get(i), i);
+				addString(heap, nodes.get(i).getId(), nodeEntries, i * 4);
+				addData(heap, nodes.get(i).getData(), serializer, nodeEntries, i * 4 + 2);
+			}
+
+			ArrayList<Context> contexts = contextualEgoNetwork.getContexts();
+			int[] contextEntries = new int[contexts.size() * 6];
+			ArrayList<Integer> contextNodes = new ArrayList<Integer>();
+			ArrayList<Integer> rowPointers = new ArrayList<Integer>();
+			ArrayList<Integer> edgeSources = new ArrayList<Integer>();
+			ArrayList<Integer> edgeDestinations = new ArrayList<Integer>();
+			ArrayList<Integer> interactionPointers = new ArrayList<Integer>();
+			ArrayList<Long> interactionStarts = new ArrayList<Long>();
+			ArrayList<Long> interactionDurations = new ArrayList<Long>();
+			ArrayList<Integer> interactionData = new ArrayList<Integer>();
+			for (int c = 0; c < contexts.size(); c++) {
+				Context context = contexts.get(c);
+				boolean wasLoaded = context.isLoaded();
+				addData(heap, context.getData(), serializer, contextEntries, c * 6);
+				ArrayList<Node> localNodes = context.getNodes();
+				final HashMap<Node, Integer> localIndexes = new HashMap<Node, Integer>();
+				contextEntries[c * 6 + 2] = contextNodes.size();
+				contextEntries[c * 6 + 3] = localNodes.size();
+				for (Node node : localNodes) {
+					localIndexes.put(node, localIndexes.size());
+					contextNodes.add(nodeIndexes.get(node));
+				}
+				ArrayList<Edge> edges = context.getEdges();
+				Collections.sort(edges, new Comparator<Edge>() {
+					@Override
+					public int compare(Edge edge1, Edge edge2) {
+						int comparison = Integer.compare(localIndexes.get(edge1.getSrc()), localIndexes.get(edge2.getSrc()));
+						return comparison != 0 ? comparison : Integer.compare(localIndexes.get(edge1.getDst()), localIndexes.get(edge2.getDst()));
+					}
+				});
+				contextEntries[c * 6 + 4] = edgeSources.size();
+				contextEntries[c * 6 + 5] = edges.size();
+				int edgePosition = 0;
+				for (int local = 0; local <= localNodes.size(); local++) {
+					rowPointers.add(edgePosition);
+					while (local < localNodes.size() && edgePosition < edges.size()
+							&& localIndexes.get(edges.get(edgePosition).getSrc()) == local)
+						edgePosition++;
+				}
+				for (Edge edge : edges) {
+					edgeSources.add(localIndexes.get(edge.getSrc()));
+					edgeDestinations.add(localIndexes.get(edge.getDst()));
+					interactionPointers.add(interactionStarts.size());
+					for (Interaction interaction : edge.getInteractions()) {
+						interactionStarts.add(interaction.getStartTime());
+						interactionDurations.add(interaction.getDuration());
+						int[] dataEntry = new int[2];
+						addData(heap, interaction.getData(), serializer, dataEntry, 0);
+						interactionData.add(dataEntry[0]);
+						interactionData.add(dataEntry[1]);
+					}
+				}
+				if (!wasLoaded)
+					context.cleanup();
+			}
+			interactionPointers.add(interactionStarts.size());
+
+			long[] positions = new long[12];
+			long position = HEADER_SIZE;
+			long[] sizes = {nodeEntries.length * 4L, contextEntries.length * 4L, contextNodes.size() * 4L,
+					rowPointers.size() * 4L, edgeSources.size() * 4L, edgeDestinations.size() * 4L,
+					interactionPointers.size() * 4L, interactionStarts.size() * 8L, interactionDurations.size() * 8L,
+					interactionStarts.size() * 4L, interactionStarts.size() * 4L, heap.size()};
+			for (int i = 0; i < sizes.length; i++) {
+				positions[i] = position;
+				position = (position + sizes[i] + 7) / 8 * 8;
+			}
+			if (position > Integer.MAX_VALUE)
+				return Utils.error("Snapshot exceeds the maximum size of 2GB", false);
+			ByteBuffer output = ByteBuffer.allocate((int) position).order(ByteOrder.LITTLE_ENDIAN);
+			output.put(MAGIC);
+			output.putInt(VERSION);
+			output.putInt(nodes.size());
+			output.putInt(contexts.size());
+			output.putInt(contextNodes.size());
+			output.putInt(edgeSources.size());
+			output.putInt(interactionStarts.size());
+			for (long sectionPosition : positions)
+				output.putLong(sectionPosition);
+			output.position((int) positions[0]);
+			for (int value : nodeEntries)
+				output.putInt(value);
+			output.position((int) positions[1]);
+			for (int value : contextEntries)
+				output.putInt(value);
+			putInts(output, positions[2], contextNodes);
+			putInts(output, positions[3], rowPointers);
+			putInts(output, positions[4], edgeSources);
+			putInts(output, positions[5], edgeDestinations);
+			putInts(output, positions[6], interactionPointers);
+			output.position((int) positions[7]);
+			for (long value : interactionStarts)
+				output.putLong(value);
+			output.position((int) positions[8]);
+			for (long value : interactionDurations)
+				output.putLong(value);
+			for (int i = 0; i < interactionStarts.size(); i++) {
+				output.putInt((int) positions[9] + i * 4, interactionData.get(i * 2));
+				output.putInt((int) positions[10] + i * 4, interactionData.get(i * 2 + 1));
+			}
+			output.position((int) positions[11]);
+			output.put(heap.toByteArray());
+			output.position(0);
+
+			RandomAccessFile file = new RandomAccessFile(path, "rw");
+			try {
+				file.setLength(0);
+				FileChannel channel = file.getChannel();
+				while (output.hasRemaining())
+					channel.write(output);
+			}
+			finally {
+				file.close();
+			}
+			Utils.log("Exported snapshot with " + nodes.size() + " nodes, " + contexts.size() + " contexts, "
+					+ edgeSources.size() + " edges and " + interactionStarts.size() + " interactions ("
+					+ (System.nanoTime() - tic) / 1000.0 / 1000.0 + " ms)");
+			return true;
+		}
+		catch (Exception e) {
+			return Utils.error(e, false);
+		}
+	}
+
+	private static void putInts(ByteBuffer output, long position, ArrayList<Integer> values) {
+		output.position((int) position);
+		for (int value : values)
+			output.putInt(value);
+	}
+
+	private static void addString(ByteArrayOutputStream heap, String value, int[] entries, int position) {
+		byte[] bytes = value.getBytes(UTF8);
+		entries[position] = heap.size();
+		entries[position + 1] = bytes.length;
+		heap.write(bytes, 0, bytes.length);
+	}
+
+	private static void addData(ByteArrayOutputStream heap, Object data, Serializer serializer, int[] entries, int position) {
+		if (data == null) {
+			entries[position] = 0;
+			entries[position + 1] = -1;
+			return;
+		}
+		heap.write(data instanceof String ? STRING_DATA : SERIALIZED_DATA);
+		addString(heap, data instanceof String ? (String) data : serializer.serializeToString(data), entries, position);
+		entries[position]--;
+		entries[position + 1]++;
+	}
+
+	private String getString(int offset, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = buffer.get((int) heapPosition + offset + i);
+		return new String(bytes, UTF8);
+	}
+
+	private Object getData(int offset, int length) {
+		if (length < 0)
+			return null;
+		String contents = getString(offset + 1, length - 1);
+		if (buffer.get((int) heapPosition + offset) == STRING_DATA)
+			return contents;
+		synchronized (this) {
+			if (dataSerializer == null)
+				dataSerializer = new Serializer(null);
+			return dataSerializer.deserializeFromString(contents);
+		}
+	}
+
+	private int getInt(long section, int index) {
+		return buffer.getInt((int) section + index * 4);
+	}
+
+	/**
+	 * @return The number of nodes in the snapshot, including the ego
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @param index The index of a node, from 0 to {@link #getNodeCount()}-1
+	 * @return A view of the node
+	 */
+	public NodeView getNode(int index) {
+		if (index < 0 || index >= nodeCount)
+			Utils.error(new IndexOutOfBoundsException());
+		return new NodeView(this, index);
+	}
+
+	/**
+	 * @return A view of the ego node (whose index is 0)
+	 */
+	public NodeView getEgo() {
+		return getNode(0);
+	}
+
+	/**
+	 * Searches for a node with the given id. This performs a linear scan over the node table.
+	 * @param nodeId The node's id
+	 * @return A view of the node, <code>null</code> if no such node exists
+	 */
+	public NodeView findNode(String nodeId) {
+		byte[] id = nodeId.getBytes(UTF8);
+		for (int index = 0; index < nodeCount; index++) {
+			int position = (int) nodesPosition + index * NODE_ENTRY_SIZE;
+			if (buffer.getInt(position + 4) != id.length)
+				continue;
+			int offset = (int) heapPosition + buffer.getInt(position);
+			boolean found = true;
+			for (int i = 0; i < id.length && found; i++)
+				found = buffer.get(offset + i) == id[i];
+			if (found)
+				return new NodeView(this, index);
+		}
+		return null;
+	}
+
+	/**
+	 * @return The number of contexts in the snapshot
+	 */
+	public int getContextCount() {
+		return contextCount;
+	}
+
+	/**
+	 * @param index The index of a context, from 0 to {@link #getContextCount()}-1
+	 * @return A view of the context
+	 */
+	public ContextView getContext(int index) {
+		if (index < 0 || index >= contextCount)
+			Utils.error(new IndexOutOfBoundsException());
+		return new ContextView(this, index);
+	}
+
+	/**
+	 * This class implements a read-only view of a snapshot's node.
+	 */
+	public static final class NodeView {
+		private final Snapshot snapshot;
+		private final int index;
+
+		private NodeView(Snapshot snapshot, int index) {
+			this.snapshot = snapshot;
+			this.index = index;
+		}
+
+		/**
+		 * @return The node's index in the snapshot
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return The node's identifier
+		 * @see Node#getId()
+		 */
+		public String getId() {
+			int position = (int) snapshot.nodesPosition + index * NODE_ENTRY_SIZE;
+			return snapshot.getString(snapshot.buffer.getInt(position), snapshot.buffer.getInt(position + 4));
+		}
+
+		/**
+		 * @return The data attached to the node
+		 * @see Node#getData()
+		 */
+		public Object getData() {
+			int position = (int) snapshot.nodesPosition + index * NODE_ENTRY_SIZE;
+			return snapshot.getData(snapshot.buffer.getInt(position + 8), snapshot.buffer.getInt(position + 12));
+		}
+	}
+
+	/**
+	 * This class implements a read-only view of a snapshot's context, whose nodes are accessed by their
+	 * local index within the context.
+	 */
+	public static final class ContextView {
+		private final Snapshot snapshot;
+		private final int index;
+		private final int nodeBase;
+		private final int nodeCount;
+		private final int edgeBase;
+		private final int edgeCount;
+
+		private ContextView(Snapshot snapshot, int index) {
+			this.snapshot = snapshot;
+			this.index = index;
+			int position = (int) snapshot.contextsPosition + index * CONTEXT_ENTRY_SIZE;
+			nodeBase = snapshot.buffer.getInt(position + 8);
+			nodeCount = snapshot.buffer.getInt(position + 12);
+			edgeBase = snapshot.buffer.getInt(position + 16);
+			edgeCount = snapshot.buffer.getInt(position + 20);
+		}
+
+		/**
+		 * @return The context's index in the snapshot
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return The data attached to the context
+		 * @see Context#getData()
+		 */
+		public Object getData() {
+			int position = (int) snapshot.contextsPosition + index * CONTEXT_ENTRY_SIZE;
+			return snapshot.getData(snapshot.buffer.getInt(position), snapshot.buffer.getInt(position + 4));
+		}
+
+		/**
+		 * @return The number of nodes in the context
+		 */
+		public int getNodeCount() {
+			return nodeCount;
+		}
+
+		/**
+		 * @param localIndex The local index of a node within the context, from 0 to {@link #getNodeCount()}-1
+		 * @return A view of the node
+		 */
+		public NodeView getNode(int localIndex) {
+			return snapshot.getNode(getNodeIndex(localIndex));
+		}
+
+		/**
+		 * @param localIndex The local index of a node within the context, from 0 to {@link #getNodeCount()}-1
+		 * @return The node's index in the snapshot
+		 */
+		public int getNodeIndex(int localIndex) {
+			if (localIndex < 0 || localIndex >= nodeCount)
+				Utils.error(new IndexOutOfBoundsException());
+			return snapshot.getInt(snapshot.contextNodesPosition, nodeBase + localIndex);
+		}
+
+		/**
+		 * @return The number of edges in the context
+		 */
+		public int getEdgeCount() {
+			return edgeCount;
+		}
+
+		/**
+		 * @param edgeIndex The index of an edge within the context, from 0 to {@link #getEdgeCount()}-1.
+		 *  Edges are sorted by the local indexes of their source and then their destination nodes.
+		 * @return A view of the edge
+		 */
+		public EdgeView getEdge(int edgeIndex) {
+			if (edgeIndex < 0 || edgeIndex >= edgeCount)
+				Utils.error(new IndexOutOfBoundsException());
+			return new EdgeView(this, edgeIndex);
+		}
+
+		/**
+		 * @param localIndex The local index of a node within the context
+		 * @return The number of edges starting from the node
+		 */
+		public int getOutDegree(int localIndex) {
+			return getFirstOutEdge(localIndex + 1) - getFirstOutEdge(localIndex);
+		}
+
+		/**
+		 * @param localIndex The local index of a node within the context
+		 * @return The index of the first edge starting from the node, where the node's outgoing edges
+		 *  lie from this index up to this index plus {@link #getOutDegree(int)}
+		 */
+		public int getFirstOutEdge(int localIndex) {
+			if (localIndex < 0 || localIndex > nodeCount)
+				Utils.error(new IndexOutOfBoundsException());
+			return snapshot.getInt(snapshot.rowPointersPosition, nodeBase + index + localIndex);
+		}
+
+		/**
+		 * Retrieves the edge between two nodes of the context, using binary search on the source's outgoing edges.
+		 * @param srcLocalIndex The local index of the source node
+		 * @param dstLocalIndex The local index of the destination node
+		 * @return A view of the edge, <code>null</code> if there is no such edge
+		 */
+		public EdgeView getEdge(int srcLocalIndex, int dstLocalIndex) {
+			int low = getFirstOutEdge(srcLocalIndex);
+			int high = getFirstOutEdge(srcLocalIndex + 1) - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int dst = snapshot.getInt(snapshot.edgeDestinationsPosition, edgeBase + middle);
+				if (dst < dstLocalIndex)
+					low = middle + 1;
+				else if (dst > dstLocalIndex)
+					high = middle - 1;
+				else
+					return new EdgeView(this, middle);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * This class implements a read-only view of a snapshot's edge. Interactions can be accessed either
+	 * through views or directly through their index.
+	 */
+	public static final class EdgeView {
+		private final ContextView context;
+		private final int index;
+
+		private EdgeView(ContextView context, int index) {
+			this.context = context;
+			this.index = index;
+		}
+
+		/**
+		 * @return The edge's index within its context
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return The edge's context
+		 * @see Edge#getContext()
+		 */
+		public ContextView getContext() {
+			return context;
+		}
+
+		/**
+		 * @return The local index of the edge's source node within the context
+		 */
+		public int getSrcLocalIndex() {
+			return context.snapshot.getInt(context.snapshot.edgeSourcesPosition, context.edgeBase + index);
+		}
+
+		/**
+		 * @return The local index of the edge's destination node within the context
+		 */
+		public int getDstLocalIndex() {
+			return context.snapshot.getInt(context.snapshot.edgeDestinationsPosition, context.edgeBase + index);
+		}
+
+		/**
+		 * @return The source node of the edge
+		 * @see Edge#getSrc()
+		 */
+		public NodeView getSrc() {
+			return context.getNode(getSrcLocalIndex());
+		}
+
+		/**
+		 * @return The destination node of the edge
+		 * @see Edge#getDst()
+		 */
+		public NodeView getDst() {
+			return context.getNode(getDstLocalIndex());
+		}
+
+		private int getFirstInteraction() {
+			return context.snapshot.getInt(context.snapshot.interactionPointersPosition, context.edgeBase + index);
+		}
+
+		/**
+		 * @return The number of interactions on the edge
+		 */
+		public int getInteractionCount() {
+			return context.snapshot.getInt(context.snapshot.interactionPointersPosition, context.edgeBase + index + 1) - getFirstInteraction();
+		}
+
+		/**
+		 * @param interactionIndex The index of an interaction on the edge, from 0 to {@link #getInteractionCount()}-1
+		 * @return A view of the interaction
+		 */
+		public InteractionView getInteraction(int interactionIndex) {
+			if (interactionIndex < 0 || interactionIndex >= getInteractionCount())
+				Utils.error(new IndexOutOfBoundsException());
+			return new InteractionView(this, getFirstInteraction() + interactionIndex);
+		}
+
+		/**
+		 * @param interactionIndex The index of an interaction on the edge
+		 * @return The start timestamp of the interaction
+		 * @see Interaction#getStartTime()
+		 */
+		public long getInteractionStartTime(int interactionIndex) {
+			return context.snapshot.buffer.getLong((int) context.snapshot.interactionStartsPosition + (getFirstInteraction() + interactionIndex) * 8);
+		}
+
+		/**
+		 * @param interactionIndex The index of an interaction on the edge
+		 * @return The duration of the interaction
+		 * @see Interaction#getDuration()
+		 */
+		public long getInteractionDuration(int interactionIndex) {
+			return context.snapshot.buffer.getLong((int) context.snapshot.interactionDurationsPosition + (getFirstInteraction() + interactionIndex) * 8);
+		}
+	}
+
+	/**
+	 * This class implements a read-only view of a snapshot's interaction.
+	 */
+	public static final class InteractionView {
+		private final EdgeView edge;
+		private final int index;
+
+		private InteractionView(EdgeView edge, int index) {
+			this.edge = edge;
+			this.index = index;
+		}
+
+		/**
+		 * @return The edge the interaction belongs to
+		 * @see Interaction#getEdge()
+		 */
+		public EdgeView getEdge() {
+			return edge;
+		}
+
+		/**
+		 * @return The start timestamp of the interaction
+		 * @see Interaction#getStartTime()
+		 */
+		public long getStartTime() {
+			return edge.context.snapshot.buffer.getLong((int) edge.context.snapshot.interactionStartsPosition + index * 8);
+		}
+
+		/**
+		 * @return The duration of the interaction
+		 * @see Interaction#getDuration()
+		 */
+		public long getDuration() {
+			return edge.context.snapshot.buffer.getLong((int) edge.context.snapshot.interactionDurationsPosition + index * 8);
+		}
+
+		/**
+		 * @return The end timestamp of the interaction
+		 * @see Interaction#getEndTime()
+		 */
+		public long getEndTime() {
+			return getStartTime() + getDuration();
+		}
+
+		/**
+		 * @return The data attached to the interaction
+		 * @see Interaction#getData()
+		 */
+		public Object getData() {
+			Snapshot snapshot = edge.context.snapshot;
+			return snapshot.getData(snapshot.getInt(snapshot.interactionDataOffsetsPosition, index),
+					snapshot.getInt(snapshot.interactionDataLengthsPosition, index));
+		}
+	}
+}
@@ -1,40 +1,306 @@
 package eu.h2020.helios_social.core.contextualegonetwork;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class abstracts file system operations that can be used by the {@link Serializer}.
  * To extend this class it is imperative to create a public constructor, but instantiation
  * should be preferred through the static {@link #getInstance(String, Class)} method of this
- * base class.
+ * base class. Storage instances obtained this way keep their location until they are closed
+ * with {@link #close()}, and can be obtained concurrently by multiple threads.
+ * <p>
+ * Files can be accessed both as Strings and as UTF-8 encoded bytes or streams. Storage systems need to
+ * implement only the String methods, since the byte and stream methods default to adapters over them,
+ * but should override the latter when they can access bytes directly.
+ * <p>
+ * Saving, loading, deleting and checking for files can also be performed asynchronously, in which case
+ * operations return {@link CompletableFuture}s and by default run on a pool of daemon I/O threads shared
+ * by all storage instances. Asynchronous operations are not ordered with respect to each other, so callers
+ * that e.g. load a file after saving it should wait for saving to complete first.
  * 
  * @author Emmanouil Krasanakis (maniospas@iti.gr)
  */
 public abstract class Storage {
-	private static HashMap<String, Storage> storagePaths = new HashMap<String, Storage>();
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+	// no registered path is a prefix of another, so that conflicts are found among the neighbors of a path
+	private static final ConcurrentSkipListMap<String, Storage> storagePaths = new ConcurrentSkipListMap<String, Storage>();
+	private static final int IO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	private static ThreadPoolExecutor ioExecutor = null;
+	private volatile String registeredPath = null;
 	public static Storage getInstance(String path, Class<? extends Storage> storageClass) {
 		if(!path.isEmpty() && !path.endsWith(File.separator) && !path.endsWith("\\") && !path.endsWith("/"))
 			path += File.separator;
 		Storage existingStorage = storagePaths.get(path);
-		if(existingStorage!=null) {
-			if(existingStorage.getClass() != storageClass)
-				return Utils.error("A different storage instance is using the given location", existingStorage);
-			return existingStorage;
+		if(existingStorage==null) {
+			synchronized(storagePaths) {
+				existingStorage = storagePaths.get(path);
+				if(existingStorage==null) {
+					Map.Entry<String, Storage> parent = storagePaths.floorEntry(path);
+					Map.Entry<String, Storage> child = storagePaths.ceilingEntry(path);
+					if((parent!=null && path.startsWith(parent.getKey())) || (child!=null && child.getKey().startsWith(path)))
+						return Utils.error("A different storage instance is indirectly using the given location", null);
+					try {
+						existingStorage = storageClass.getConstructor(String.class).newInstance(path);
+					}
+					catch (Exception e) {
+						return Utils.error(e.toString(), null);
+					}
+					existingStorage.registeredPath = path;
+					storagePaths.put(path, existingStorage);
+					return existingStorage;
+				}
+			}
 		}
-		for(String existingPath : storagePaths.keySet()) 
-			if(existingPath.startsWith(path) || path.startsWith(existingPath))
-				return Utils.error("A different storage instance is indirectly using the given location", null);
+		if(existingStorage.getClass() != storageClass)
+			return Utils.error("A different storage instance is using the given location", existingStorage);
+		return existingStorage;
+	}
+	/**
+	 * Closes the storage, so that its location is no longer used by it and {@link #getInstance(String, Class)}
+	 * creates a new storage instance for it. Files queued for writing by the storage's {@link Serializer}
+	 * are written first and the serializer is closed too (see {@link Serializer#close()}).
+	 * The storage should not be used after being closed.
+	 * @throws Exception on storage failure
+	 * @see #releaseResources()
+	 */
+	public void close() throws Exception {
+		Serializer.release(this);
 		try {
-			storagePaths.put(path, existingStorage = storageClass.getConstructor(String.class).newInstance(path));
+			releaseResources();
 		}
-		catch (Exception e) {
-			return Utils.error(e.toString(), null);
+		finally {
+			String path = registeredPath;
+			if(path!=null) {
+				storagePaths.remove(path, this);
+				registeredPath = null;
+			}
 		}
-		return existingStorage;
+	}
+	/**
+	 * Releases resources held by the storage (e.g. open files or threads) when it is closed by {@link #close()},
+	 * after files queued by its serializer have been written. The default implementation does nothing.
+	 * @throws Exception on storage failure
+	 */
+	protected void releaseResources() throws Exception {
 	}
 	public abstract void saveToFile(String fileName, String contents) throws Exception;
 	public abstract String loadFromFile(String fileName) throws Exception;
+	/**
+	 * Appends contents to the end of a file, creating the file if it does not exist.
+	 * The default implementation reads and rewrites the whole file, so storage systems
+	 * should override it with an actual append operation.
+	 * @param fileName The file's name
+	 * @param contents The contents to append
+	 * @throws Exception on storage failure
+	 */
+	public void appendToFile(String fileName, String contents) throws Exception {
+		saveToFile(fileName, fileExists(fileName) ? loadFromFile(fileName) + contents : contents);
+	}
+	/**
+	 * Loads the contents of a file as UTF-8 encoded bytes.
+	 * The default implementation encodes the result of {@link #loadFromFile(String)}.
+	 * @param fileName The file's name
+	 * @return The file's contents
+	 * @throws Exception on storage failure
+	 */
+	public byte[] loadBytes(String fileName) throws Exception {
+		return loadFromFile(fileName).getBytes(UTF8);
+	}
+	/**
+	 * Replaces the contents of a file, creating the file if it does not exist.
+	 * The default implementation decodes the contents and calls {@link #saveToFile(String, String)}.
+	 * @param fileName The file's name
+	 * @param contents The file's new contents as UTF-8 encoded bytes
+	 * @throws Exception on storage failure
+	 */
+	public void saveBytes(String fileName, byte[] contents) throws Exception {
+		saveToFile(fileName, new String(contents, UTF8));
+	}
+	/**
+	 * Appends contents to the end of a file, creating the file if it does not exist.
+	 * The default implementation decodes the contents and calls {@link #appendToFile(String, String)}.
+	 * @param fileName The file's name
+	 * @param contents The contents to append as UTF-8 encoded bytes
+	 * @throws Exception on storage failure
+	 */
+	public void appendBytes(String fileName, byte[] contents) throws Exception {
+		appendToFile(fileName, new String(contents, UTF8));
+	}
+	/**
+	 * Opens a stream that reads the UTF-8 encoded contents of a file. The caller should close the stream.
+	 * The default implementation reads the whole file with {@link #loadBytes(String)}.
+	 * @param fileName The file's name
+	 * @return The stream
+	 * @throws Exception on storage failure
+	 */
+	public InputStream openInputStream(String fileName) throws Exception {
+		return new ByteArrayInputStream(loadBytes(fileName));
+	}
+	/**
+	 * Opens a stream that replaces the contents of a file with the UTF-8 encoded bytes written to it.
+	 * Contents are replaced only once the stream is closed. The default implementation keeps written
+	 * bytes in memory and calls {@link #saveBytes(String, byte[])} when the stream is closed.
+	 * @param fileName The file's name
+	 * @return The stream
+	 * @throws Exception on storage failure
+	 */
+	public OutputStream openOutputStream(final String fileName) throws Exception {
+		return new ByteArrayOutputStream() {
+			private boolean closed = false;
+			@Override
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				try {
+					saveBytes(fileName, toByteArray());
+				}
+				catch (IOException e) {
+					throw e;
+				}
+				catch (Exception e) {
+					throw new IOException(e);
+				}
+			}
+		};
+	}
+	/**
+	 * Marks the start of a batch of file operations, such as saving all objects of a {@link Serializer}.
+	 * Storage systems that synchronize written files to their device may defer doing so until the batch ends.
+	 * Batches can be nested, in which case only the end of the outermost batch is considered.
+	 * The default implementation does nothing.
+	 * @see #endBatch()
+	 */
+	public void beginBatch() {
+	}
+	/**
+	 * Marks the end of a batch of file operations started with {@link #beginBatch()}.
+	 * The default implementation does nothing.
+	 * @throws Exception on storage failure
+	 */
+	public void endBatch() throws Exception {
+	}
+	/**
+	 * Retrieves the executor that runs asynchronous operations of this storage. The default implementation
+	 * returns a pool of daemon threads shared by all storage instances, whose threads exit when idle.
+	 * @return The executor
+	 */
+	protected Executor getIOExecutor() {
+		synchronized(Storage.class) {
+			if(ioExecutor==null) {
+				ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 30, TimeUnit.SECONDS, 
+						new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "CEN storage I/O");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				ioExecutor.allowCoreThreadTimeOut(true);
+			}
+			return ioExecutor;
+		}
+	}
+	/**
+	 * Runs an operation on the executor returned by {@link #getIOExecutor()}.
+	 * @param operation The operation
+	 * @return A future that completes with the operation's result, or exceptionally if the operation fails
+	 */
+	protected <T> CompletableFuture<T> runAsync(final Callable<T> operation) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			getIOExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.complete(operation.call());
+					}
+					catch (Throwable e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	/**
+	 * Asynchronously replaces the contents of a file, creating the file if it does not exist.
+	 * The default implementation runs {@link #saveToFile(String, String)} on the storage's I/O executor.
+	 * @param fileName The file's name
+	 * @param contents The file's new contents
+	 * @return A future that completes once the file has been saved
+	 */
+	public CompletableFuture<Void> saveToFileAsync(final String fileName, final String contents) {
+		return runAsync(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				saveToFile(fileName, contents);
+				return null;
+			}
+		});
+	}
+	/**
+	 * Asynchronously loads the contents of a file.
+	 * The default implementation runs {@link #loadFromFile(String)} on the storage's I/O executor.
+	 * @param fileName The file's name
+	 * @return A future that completes with the file's contents
+	 */
+	public CompletableFuture<String> loadFromFileAsync(final String fileName) {
+		return runAsync(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return loadFromFile(fileName);
+			}
+		});
+	}
+	/**
+	 * Asynchronously deletes a file.
+	 * The default implementation runs {@link #deleteFile(String)} on the storage's I/O executor.
+	 * @param fileName The file's name
+	 * @return A future that completes once the file has been deleted
+	 */
+	public CompletableFuture<Void> deleteFileAsync(final String fileName) {
+		return runAsync(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				deleteFile(fileName);
+				return null;
+			}
+		});
+	}
+	/**
+	 * Asynchronously checks whether a file exists.
+	 * The default implementation runs {@link #fileExists(String)} on the storage's I/O executor.
+	 * @param fileName The file's name
+	 * @return A future that completes with whether the file exists
+	 */
+	public CompletableFuture<Boolean> fileExistsAsync(final String fileName) {
+		return runAsync(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return fileExists(fileName);
+			}
+		});
+	}
 	public abstract void deleteFile(String fileName) throws Exception;
 	public abstract void deleteAll() throws Exception;
 	public abstract boolean fileExists(String fileName);
@@ -0,0 +1,77 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class implements the bounded intern table that the {@link Serializer} uses to canonicalize strings during
+ * deserialization, so that equal strings (e.g. node ids and payload types) loaded from different files share a
+ * single instance. Once the table is full, the least recently used strings are evicted. Strings longer than
+ * {@link #MAX_LENGTH} characters are never added to the table, since they are rarely repeated.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class StringTable {
+	static final int MAX_LENGTH = 128;
+
+	private final LinkedHashMap<String, String> table;
+	private long deduplicatedStrings = 0;
+	private long deduplicatedBytes = 0;
+
+	/**
+	 * @param capacity The maximum number of strings kept in the table
+	 */
+	StringTable(final int capacity) {
+		table = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Retrieves the canonical instance of a string, adding the string to the table if no equal string is found.
+	 * @param value The string to canonicalize
+	 * @return An equal string, which is the given one if it was not previously in the table
+	 */
+	synchronized String canonicalize(String value) {
+		if (value.length() > MAX_LENGTH)
+			return value;
+		String canonical = table.get(value);
+		if (canonical == null) {
+			table.put(value, value);
+			return value;
+		}
+		if (canonical != value) {
+			deduplicatedStrings++;
+			deduplicatedBytes += estimateSize(value);
+		}
+		return canonical;
+	}
+
+	/**
+	 * Estimates the heap occupied by a string on 64-bit JVMs with compressed references, as the size of
+	 * the string object plus the size of its character array, each rounded up to multiples of 8 bytes.
+	 * @param value The string
+	 * @return The estimated number of bytes
+	 */
+	static long estimateSize(String value) {
+		return 24 + (16 + 2L * value.length() + 7) / 8 * 8;
+	}
+
+	/**
+	 * @return The number of deserialized strings replaced by canonical instances
+	 */
+	synchronized long getDeduplicatedStrings() {
+		return deduplicatedStrings;
+	}
+
+	/**
+	 * @return The estimated number of heap bytes no longer retained because of deduplicated strings
+	 */
+	synchronized long getDeduplicatedBytes() {
+		return deduplicatedBytes;
+	}
+}
@@ -0,0 +1,352 @@
+package eu.h2020.helios_social.core.contextualegonetwork;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * This class implements the write-behind persistence of the {@link Serializer}, by wrapping the serializer's
+ * {@link Storage} so that file operations are queued and performed by a background thread instead of the
+ * caller's. Objects are still serialized on the caller's thread, so that the background thread never accesses
+ * them. Operations on the same file are coalesced while queued, e.g. multiple saves of a context result in
+ * writing only its last contents, whereas loading a file with queued contents returns them without accessing
+ * the storage. Files are written in the order of their last queued operation. The number of files with queued operations is bounded and callers wait for the background thread
+ * to catch up when the bound is reached. The background thread stops when no operations are queued and is not a
+ * daemon thread, so that queued operations are not lost when the application exits.
+ * <br>
+ * When write-behind is disabled (default) operations are passed to the wrapped storage on the caller's thread.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class WriteBehindStorage extends Storage {
+	private static final int SAVE = 0;
+	private static final int APPEND = 1;
+	private static final int DELETE = 2;
+
+	private static final class PendingOperation {
+		final int type;
+		final StringBuilder contents;
+		PendingOperation(int type, StringBuilder contents) {
+			this.type = type;
+			this.contents = contents;
+		}
+	}
+
+	private final Storage storage;
+	private final LinkedHashMap<String, PendingOperation> pending = new LinkedHashMap<String, PendingOperation>();
+	private final ArrayList<CompletableFuture<Void>> flushes = new ArrayList<CompletableFuture<Void>>();
+	private int maxPendingFiles = 0;
+	private String writing = null;
+	private Thread writer = null;
+	private Exception failure = null;
+	private long coalescedOperations = 0;
+
+	/**
+	 * @param storage The storage to which file operations are passed
+	 */
+	WriteBehindStorage(Storage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * Enables or disables write-behind. Disabling it waits for all queued operations to be performed.
+	 * @param maxPendingFiles The maximum number of files with queued operations, zero to disable write-behind
+	 * @throws InterruptedException if interrupted while waiting for queued operations
+	 */
+	synchronized void setMaxPendingFiles(int maxPendingFiles) throws InterruptedException {
+		this.maxPendingFiles = maxPendingFiles;
+		notifyAll();
+		if (maxPendingFiles == 0)
+			while (!pending.isEmpty() || writer != null)
+				wait();
+	}
+
+	/**
+	 * @return Whether file operations are queued to the background thread
+	 */
+	synchronized boolean isEnabled() {
+		return maxPendingFiles > 0;
+	}
+
+	/**
+	 * Obtains a future that completes once all operations queued before calling this method have been performed.
+	 * The future completes exceptionally if any operation failed since the last completed flush.
+	 * @return The flush's future
+	 */
+	synchronized CompletableFuture<Void> flush() {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		flushes.add(future);
+		completeFlushesIfIdle();
+		return future;
+	}
+
+	/**
+	 * @return The number of files with queued operations
+	 */
+	synchronized int getPendingFiles() {
+		return pending.size();
+	}
+
+	/**
+	 * @return The number of file operations merged with already queued operations on the same file
+	 */
+	synchronized long getCoalescedOperations() {
+		return coalescedOperations;
+	}
+
+	private void completeFlushesIfIdle() {
+		if (!pending.isEmpty() || writer != null || flushes.isEmpty())
+			return;
+		for (CompletableFuture<Void> future : flushes) {
+			if (failure == null)
+				future.complete(null);
+			else
+				future.completeExceptionally(failure);
+		}
+		flushes.clear();
+		failure = null;
+	}
+
+	private synchronized boolean enqueue(String fileName, int type, String contents) throws InterruptedException {
+		while (maxPendingFiles > 0 && !pending.containsKey(fileName) && pending.size() >= maxPendingFiles)
+			wait();
+		if (maxPendingFiles == 0) {
+			awaitWritten(fileName);
+			return false;
+		}
+		PendingOperation previous = pending.get(fileName);
+		PendingOperation operation;
+		if (type == APPEND && previous != null && previous.type != DELETE) {
+			previous.contents.append(contents);
+			operation = previous;
+		}
+		else
+			operation = new PendingOperation(type == APPEND && previous != null ? SAVE : type, new StringBuilder(contents == null ? "" : contents));
+		if (previous != null) {
+			coalescedOperations++;
+			// coalesced operations move to the end of the queue, so that they are still performed after
+			// the operations queued before them on other files (e.g. deleting a file after saving its replacement)
+			pending.remove(fileName);
+		}
+		pending.put(fileName, operation);
+		if (writer == null) {
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					write();
+				}
+			}, "CEN write-behind");
+			writer.start();
+		}
+		notifyAll();
+		return true;
+	}
+
+	private synchronized void awaitWritten(String fileName) throws InterruptedException {
+		while (pending.containsKey(fileName) || fileName.equals(writing))
+			wait();
+	}
+
+	private synchronized PendingOperation awaitPending(String fileName) throws InterruptedException {
+		while (!pending.containsKey(fileName) && fileName.equals(writing))
+			wait();
+		return pending.get(fileName);
+	}
+
+	private void write() {
+		while (true) {
+			// operations performed without pausing form a single batch of the wrapped storage
+			storage.beginBatch();
+			try {
+				writePending();
+			}
+			finally {
+				try {
+					storage.endBatch();
+				}
+				catch (Exception e) {
+					synchronized (this) {
+						if (failure == null)
+							failure = e;
+					}
+					Utils.log("Write-behind failed to end batch: " + e);
+				}
+			}
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					writer = null;
+					notifyAll();
+					completeFlushesIfIdle();
+					return;
+				}
+			}
+		}
+	}
+
+	private void writePending() {
+		while (true) {
+			String fileName;
+			PendingOperation operation;
+			synchronized (this) {
+				if (pending.isEmpty())
+					return;
+				Iterator<Map.Entry<String, PendingOperation>> iterator = pending.entrySet().iterator();
+				Map.Entry<String, PendingOperation> next = iterator.next();
+				iterator.remove();
+				fileName = next.getKey();
+				operation = next.getValue();
+				writing = fileName;
+				notifyAll();
+			}
+			Exception operationFailure = null;
+			try {
+				if (operation.type == SAVE)
+					storage.saveToFile(fileName, operation.contents.toString());
+				else if (operation.type == APPEND)
+					storage.appendToFile(fileName, operation.contents.toString());
+				else
+					storage.deleteFile(fileName);
+			}
+			catch (Exception e) {
+				operationFailure = e;
+				Utils.log("Write-behind failed for " + fileName + ": " + e);
+			}
+			synchronized (this) {
+				if (operationFailure != null && failure == null)
+					failure = operationFailure;
+				writing = null;
+				notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void saveToFile(String fileName, String contents) throws Exception {
+		if (!enqueue(fileName, SAVE, contents))
+			storage.saveToFile(fileName, contents);
+	}
+
+	@Override
+	public void appendToFile(String fileName, String contents) throws Exception {
+		if (!enqueue(fileName, APPEND, contents))
+			storage.appendToFile(fileName, contents);
+	}
+
+	@Override
+	public void deleteFile(String fileName) throws Exception {
+		if (!enqueue(fileName, DELETE, null))
+			storage.deleteFile(fileName);
+	}
+
+	@Override
+	public String loadFromFile(String fileName) throws Exception {
+		synchronized (this) {
+			PendingOperation operation = awaitPending(fileName);
+			if (operation != null && operation.type == SAVE)
+				return operation.contents.toString();
+			awaitWritten(fileName);
+		}
+		return storage.loadFromFile(fileName);
+	}
+
+	@Override
+	public void saveBytes(String fileName, byte[] contents) throws Exception {
+		if (!enqueue(fileName, SAVE, new String(contents, UTF8)))
+			storage.saveBytes(fileName, contents);
+	}
+
+	@Override
+	public void appendBytes(String fileName, byte[] contents) throws Exception {
+		if (!enqueue(fileName, APPEND, new String(contents, UTF8)))
+			storage.appendBytes(fileName, contents);
+	}
+
+	@Override
+	public byte[] loadBytes(String fileName) throws Exception {
+		synchronized (this) {
+			PendingOperation operation = awaitPending(fileName);
+			if (operation != null && operation.type == SAVE)
+				return operation.contents.toString().getBytes(UTF8);
+			awaitWritten(fileName);
+		}
+		return storage.loadBytes(fileName);
+	}
+
+	@Override
+	public InputStream openInputStream(String fileName) throws Exception {
+		synchronized (this) {
+			PendingOperation operation = awaitPending(fileName);
+			if (operation != null && operation.type == SAVE)
+				return new ByteArrayInputStream(operation.contents.toString().getBytes(UTF8));
+			awaitWritten(fileName);
+		}
+		return storage.openInputStream(fileName);
+	}
+
+	/**
+	 * When write-behind is enabled, written bytes are kept in memory and queued when the stream is closed.
+	 */
+	@Override
+	public OutputStream openOutputStream(String fileName) throws Exception {
+		synchronized (this) {
+			if (maxPendingFiles > 0)
+				return super.openOutputStream(fileName);
+			awaitWritten(fileName);
+		}
+		return storage.openOutputStream(fileName);
+	}
+
+	@Override
+	public boolean fileExists(String fileName) {
+		synchronized (this) {
+			try {
+				PendingOperation operation = awaitPending(fileName);
+				if (operation != null)
+					return operation.type != DELETE;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return Utils.error(e, false);
+			}
+		}
+		return storage.fileExists(fileName);
+	}
+
+	@Override
+	public void deleteAll() throws Exception {
+		synchronized (this) {
+			pending.clear();
+			while (writing != null)
+				wait();
+			notifyAll();
+			completeFlushesIfIdle();
+		}
+		storage.deleteAll();
+	}
+
+	@Override
+	public void beginBatch() {
+		storage.beginBatch();
+	}
+
+	@Override
+	public void endBatch() throws Exception {
+		storage.endBatch();
+	}
+
+	@Override
+	protected Executor getIOExecutor() {
+		return storage.getIOExecutor();
+	}
+
+	@Override
+	public String getSerializedFilePath(String fileName) {
+		return storage.getSerializedFilePath(fileName);
+	}
+}
@@ -104,7 +104,10 @@ public final class RecoveryListener implements ContextualEgoNetworkListener {
 			else
 				recover(path);
 			contextualEgoNetwork.save();
-			writer = new PrintWriter(new File(path));
+			File file = new File(path);
+			if(file.getParentFile()!=null)
+				file.getParentFile().mkdirs();
+			writer = new PrintWriter(file);
 		}
 		catch (Exception e) {
 			Utils.error(e);
@@ -0,0 +1,304 @@
+package eu.h2020.helios_social.core.contextualegonetwork.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import eu.h2020.helios_social.core.contextualegonetwork.Storage;
+import eu.h2020.helios_social.core.contextualegonetwork.Utils;
+
+/**
+ * This is a {@link Storage} decorator that keeps the contents of recently accessed files of another storage
+ * in memory, so that repeatedly loading the same files (e.g. when contexts are repeatedly unloaded and loaded)
+ * does not access the other storage. The cache is bounded by the total size of cached contents and evicts
+ * the least recently used files once full. Saved files are written to the other storage and cached at the
+ * same time, unless files are concurrently modified, whereas appending to or deleting files removes them from the cache.
+ * <p>
+ * The cache's effectiveness can be measured through {@link #getHitRate()} and {@link #getBytesServed()}.
+ * Since decorators wrap storage instances, they are created through their constructor instead of
+ * {@link Storage#getInstance(String, Class)}, e.g. <code>new CachingStorage(Storage.getInstance(path, NativeStorage.class), 1 &lt;&lt; 20)</code>.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+public class CachingStorage extends Storage {
+	private final Storage storage;
+	private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private long maxBytes;
+	private long cachedBytes = 0;
+	private long modifications = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long bytesServed = 0;
+
+	/**
+	 * @param storage The storage whose files are cached
+	 * @param maxBytes The maximum total size of cached file contents in bytes
+	 */
+	public CachingStorage(Storage storage, long maxBytes) {
+		if (storage == null)
+			Utils.error(new IllegalArgumentException("null storage"));
+		if (maxBytes < 0)
+			Utils.error(new IllegalArgumentException("Cache size cannot be negative"));
+		this.storage = storage;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return The storage whose files are cached
+	 */
+	public Storage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Changes the maximum total size of cached file contents, evicting the least recently used files if needed.
+	 * @param maxBytes The maximum size in bytes, zero to disable caching
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		if (maxBytes < 0) {
+			Utils.error(new IllegalArgumentException("Cache size cannot be negative"));
+			return;
+		}
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * @return The total size of cached file contents in bytes
+	 */
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	/**
+	 * @return The number of loads served from the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of loads served by the wrapped storage
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The fraction of loads served from the cache, zero if no files have been loaded
+	 */
+	public synchronized double getHitRate() {
+		return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+	}
+
+	/**
+	 * @return The number of bytes of file contents served from the cache
+	 */
+	public synchronized long getBytesServed() {
+		return bytesServed;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, byte[]>> iterator = cache.entrySet().iterator();
+		while (cachedBytes > maxBytes && iterator.hasNext()) {
+			cachedBytes -= iterator.next().getValue().length;
+			iterator.remove();
+		}
+	}
+
+	private void invalidate(String fileName) {
+		modifications++;
+		byte[] removed = cache.remove(fileName);
+		if (removed != null)
+			cachedBytes -= removed.length;
+	}
+
+	private void cache(String fileName, byte[] contents) {
+		invalidate(fileName);
+		if (contents.length > maxBytes)
+			return;
+		cache.put(fileName, contents);
+		cachedBytes += contents.length;
+		evict();
+	}
+
+	private synchronized byte[] getCached(String fileName, boolean countMiss) {
+		byte[] contents = cache.get(fileName);
+		if (contents == null) {
+			if (countMiss)
+				misses++;
+		}
+		else {
+			hits++;
+			bytesServed += contents.length;
+		}
+		return contents;
+	}
+
+	private byte[] load(String fileName) throws Exception {
+		byte[] contents = getCached(fileName, true);
+		if (contents != null)
+			return contents;
+		long observedModifications;
+		synchronized (this) {
+			observedModifications = modifications;
+		}
+		contents = storage.loadBytes(fileName);
+		synchronized (this) {
+			// contents loaded while the file was being modified may be stale
+			if (modifications == observedModifications && contents.length <= maxBytes) {
+				cache.put(fileName, contents);
+				cachedBytes += contents.length;
+				evict();
+			}
+		}
+		return contents;
+	}
+
+	@Override
+	public byte[] loadBytes(String fileName) throws Exception {
+		return load(fileName).clone();
+	}
+
+	@Override
+	public InputStream openInputStream(String fileName) throws Exception {
+		return new ByteArrayInputStream(load(fileName));
+	}
+
+	@Override
+	public String loadFromFile(String fileName) throws Exception {
+		return new String(load(fileName), UTF8);
+	}
+
+	/**
+	 * Cached files are loaded immediately by the calling thread, since they do not need to access the wrapped storage.
+	 */
+	@Override
+	public CompletableFuture<String> loadFromFileAsync(String fileName) {
+		byte[] contents = getCached(fileName, false);
+		if (contents != null)
+			return CompletableFuture.completedFuture(new String(contents, UTF8));
+		return super.loadFromFileAsync(fileName);
+	}
+
+	@Override
+	public CompletableFuture<Boolean> fileExistsAsync(String fileName) {
+		synchronized (this) {
+			if (cache.containsKey(fileName))
+				return CompletableFuture.completedFuture(true);
+		}
+		return super.fileExistsAsync(fileName);
+	}
+
+	@Override
+	public void saveBytes(String fileName, byte[] contents) throws Exception {
+		long observedModifications;
+		synchronized (this) {
+			invalidate(fileName);
+			observedModifications = modifications;
+		}
+		try {
+			storage.saveBytes(fileName, contents);
+		}
+		catch (Exception e) {
+			synchronized (this) {
+				invalidate(fileName);
+			}
+			throw e;
+		}
+		synchronized (this) {
+			// files modified concurrently with saving may hold other contents than the saved ones
+			if (modifications == observedModifications)
+				cache(fileName, contents.clone());
+			else
+				invalidate(fileName);
+		}
+	}
+
+	@Override
+	public void saveToFile(String fileName, String contents) throws Exception {
+		saveBytes(fileName, contents.getBytes(UTF8));
+	}
+
+	@Override
+	public void appendBytes(String fileName, byte[] contents) throws Exception {
+		synchronized (this) {
+			invalidate(fileName);
+		}
+		try {
+			storage.appendBytes(fileName, contents);
+		}
+		finally {
+			// loads that started before the operation completed may have cached the previous contents
+			synchronized (this) {
+				invalidate(fileName);
+			}
+		}
+	}
+
+	@Override
+	public void appendToFile(String fileName, String contents) throws Exception {
+		appendBytes(fileName, contents.getBytes(UTF8));
+	}
+
+	@Override
+	public void deleteFile(String fileName) throws Exception {
+		synchronized (this) {
+			invalidate(fileName);
+		}
+		try {
+			storage.deleteFile(fileName);
+		}
+		finally {
+			synchronized (this) {
+				invalidate(fileName);
+			}
+		}
+	}
+
+	@Override
+	public void deleteAll() throws Exception {
+		synchronized (this) {
+			modifications++;
+			cache.clear();
+			cachedBytes = 0;
+		}
+		try {
+			storage.deleteAll();
+		}
+		finally {
+			synchronized (this) {
+				modifications++;
+				cache.clear();
+				cachedBytes = 0;
+			}
+		}
+	}
+
+	@Override
+	public boolean fileExists(String fileName) {
+		synchronized (this) {
+			if (cache.containsKey(fileName))
+				return true;
+		}
+		return storage.fileExists(fileName);
+	}
+
+	@Override
+	public void beginBatch() {
+		storage.beginBatch();
+	}
+
+	@Override
+	public void endBatch() throws Exception {
+		storage.endBatch();
+	}
+
+	@Override
+	public String getSerializedFilePath(String fileName) {
+		return storage.getSerializedFilePath(fileName);
+	}
+}
@@ -0,0 +1,91 @@
+package eu.h2020.helios_social.core.contextualegonetwork.storage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * This class implements the bookkeeping of file synchronization for {@link NativeStorage} and {@link LegacyStorage}.
+ * It holds whether written files should be synchronized to the underlying device and whether synchronizing files
+ * written within a batch of operations (see {@link eu.h2020.helios_social.core.contextualegonetwork.Storage#beginBatch()})
+ * is deferred until the batch ends, so that its cost is amortized across all files of the batch. Only the synchronization
+ * of appended files and of the directories of replaced files is deferred, since files replaced by renaming temporary
+ * files over them need their contents synchronized before renaming, lest the renaming reaches the device before them.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+final class FileSync {
+	private boolean enabled = false;
+	private boolean grouped = false;
+	private int batchDepth = 0;
+	private LinkedHashSet<String> deferredPaths = new LinkedHashSet<String>();
+
+	synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	synchronized void setGrouped(boolean grouped) {
+		this.grouped = grouped;
+	}
+
+	synchronized boolean isGrouped() {
+		return grouped;
+	}
+
+	/**
+	 * Checks whether a file appended to should be synchronized immediately.
+	 * @param path The path of the written file
+	 * @return <code>false</code> if synchronization is disabled or the file has been deferred to the end of the batch
+	 */
+	synchronized boolean syncNow(String path) {
+		if (!enabled)
+			return false;
+		if (!grouped || batchDepth == 0)
+			return true;
+		deferredPaths.add(path);
+		return false;
+	}
+
+	/**
+	 * Checks whether the directory of a replaced file should be synchronized immediately.
+	 * @param directory The path of the directory
+	 * @return <code>false</code> if synchronization is disabled or the directory has been deferred to the end of the batch
+	 */
+	synchronized boolean syncDirectoryNow(String directory) {
+		if (!enabled)
+			return false;
+		if (!grouped || batchDepth == 0)
+			return true;
+		deferredPaths.add(directory);
+		return false;
+	}
+
+	/**
+	 * Stops tracking a deleted file.
+	 * @param path The path of the deleted file
+	 */
+	synchronized void forget(String path) {
+		deferredPaths.remove(path);
+	}
+
+	synchronized void beginBatch() {
+		batchDepth++;
+	}
+
+	/**
+	 * Ends a batch of operations. Batches can be nested.
+	 * @return The paths of the files and directories to synchronize because the outermost batch ended
+	 */
+	synchronized ArrayList<String> endBatch() {
+		if (batchDepth > 0)
+			batchDepth--;
+		if (batchDepth > 0 || deferredPaths.isEmpty())
+			return new ArrayList<String>();
+		ArrayList<String> paths = new ArrayList<String>(deferredPaths);
+		deferredPaths.clear();
+		return paths;
+	}
+}
@@ -1,10 +1,13 @@
 package eu.h2020.helios_social.core.contextualegonetwork.storage;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.OutputStreamWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 
 import eu.h2020.helios_social.core.contextualegonetwork.Storage;
 import eu.h2020.helios_social.core.contextualegonetwork.Utils;
@@ -14,11 +17,21 @@ import eu.h2020.helios_social.core.contextualegonetwork.Utils;
  * to save and load files.
  * To ensure compatibility with Android versions 26 or earlier,
  * it uses java.io instead of java.nio for file system operations.
+ * <p>
+ * Saved files are first written to temporary files that are then renamed over the saved ones,
+ * so that crashes while saving do not corrupt previously saved files. Written files can also be synchronized
+ * to the storage device through {@link #setSync(boolean)}, either individually or for whole batches of
+ * operations through {@link #setGroupSync(boolean)}.
+ * <p>
+ * Files are read and written as UTF-8 bytes, and String contents are converted to bytes and back only by
+ * {@link #saveToFile(String, String)}, {@link #appendToFile(String, String)} and {@link #loadFromFile(String)}.
  * 
  * @author Emmanouil Krasanakis (maniospas@iti.gr)
  */
 public class LegacyStorage extends Storage {
+	private static final String TEMP_SUFFIX = ".tmp";
 	private String path;
+	private final FileSync fileSync = new FileSync();
 	public LegacyStorage(String path) {
 		if(path==null || path.isEmpty())
 			Utils.error("For safety reasons, cannot access a null or empty storage location");
@@ -30,34 +43,128 @@ public class LegacyStorage extends Storage {
 	public String getSerializedFilePath(String fileName) {
 		return this.path + fileName;
 	}
+	/**
+	 * Enables or disables synchronizing written files to the storage device, so that saved files survive
+	 * operating system crashes and power failures instead of only application crashes.
+	 * @param enabled Whether written files are synchronized (default is <code>false</code>)
+	 * @see #setGroupSync(boolean)
+	 */
+	public void setSync(boolean enabled) {
+		fileSync.setEnabled(enabled);
+	}
+	/**
+	 * @return Whether written files are synchronized to the storage device
+	 */
+	public boolean isSync() {
+		return fileSync.isEnabled();
+	}
+	/**
+	 * Enables or disables deferring the synchronization of files written within a batch of operations
+	 * (see {@link #beginBatch()}) until the batch ends, which synchronizes all of them at once. Saved files are still
+	 * synchronized before being renamed over previous ones, so that power failures leave either their previous
+	 * or their new contents, and only synchronizing appended files is deferred. Hence, files appended to within
+	 * a batch are not guaranteed to survive power failures before the batch ends.
+	 * @param enabled Whether synchronization is deferred to the end of batches (default is <code>false</code>)
+	 * @see #setSync(boolean)
+	 */
+	public void setGroupSync(boolean enabled) {
+		fileSync.setGrouped(enabled);
+	}
+	/**
+	 * @return Whether synchronizing files written within batches is deferred until batches end
+	 */
+	public boolean isGroupSync() {
+		return fileSync.isGrouped();
+	}
 	@Override
-	public void saveToFile(String fileName, String contents) throws Exception {
+	public void beginBatch() {
+		fileSync.beginBatch();
+	}
+	@Override
+	public void endBatch() throws Exception {
+		for (String path : fileSync.endBatch()) {
+			File file = new File(path);
+			if (!file.exists())
+				continue;
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				randomAccessFile.getFD().sync();
+			}
+			finally {
+				randomAccessFile.close();
+			}
+		}
+	}
+	private void write(File file, byte[] contents, boolean append, boolean sync) throws Exception {
+		FileOutputStream outputStream = new FileOutputStream(file, append);
+		try {
+			outputStream.write(contents);
+			if (sync)
+				outputStream.getFD().sync();
+		}
+		finally {
+			outputStream.close();
+		}
+	}
+	/**
+	 * Writes the contents to a temporary file next to the given one and renames the temporary
+	 * file over the given one, so that a crash while saving leaves either the previous or the new contents.
+	 * On platforms where renaming cannot replace existing files, the given file is deleted before renaming.
+	 * If synchronization is enabled, the temporary file is synchronized before renaming it.
+	 */
+	@Override
+	public void saveBytes(String fileName, byte[] contents) throws Exception {
 		String path = getSerializedFilePath(fileName);
-		getSerializedFilePath(fileName);
 		File dirPath = new File(path);
 		if (dirPath.getParent() != null)
 			dirPath.getParentFile().mkdirs();
-		dirPath.delete();
-		dirPath.createNewFile();
-		FileOutputStream outputStream = new FileOutputStream(dirPath);
-		OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream);
-		outputStreamWriter.write(contents);
-		outputStreamWriter.close();
-		outputStream.close();
+		File tempPath = new File(path + TEMP_SUFFIX);
+		write(tempPath, contents, false, fileSync.isEnabled());
+		if (!tempPath.renameTo(dirPath)) {
+			dirPath.delete();
+			if (!tempPath.renameTo(dirPath))
+				throw new IOException("Could not replace " + path);
+		}
 	}
 	@Override
-	public String loadFromFile(String fileName) throws Exception {
-		BufferedReader br = new BufferedReader(new FileReader(getSerializedFilePath(fileName)));
-		StringBuilder builder = new StringBuilder();
-		String line = br.readLine();
-		while (line != null) {
-			builder.append(line);
-			builder.append(System.lineSeparator());
-			line = br.readLine();
+	public void appendBytes(String fileName, byte[] contents) throws Exception {
+		String path = getSerializedFilePath(fileName);
+		File dirPath = new File(path);
+		if (dirPath.getParent() != null)
+			dirPath.getParentFile().mkdirs();
+		write(dirPath, contents, true, fileSync.syncNow(path));
+	}
+	@Override
+	public byte[] loadBytes(String fileName) throws Exception {
+		File file = new File(getSerializedFilePath(fileName));
+		FileInputStream inputStream = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream((int) Math.min(file.length(), Integer.MAX_VALUE));
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = inputStream.read(buffer)) >= 0)
+				output.write(buffer, 0, count);
+			return output.toByteArray();
 		}
-		String read = builder.toString();
-		br.close();
-		return read;
+		finally {
+			inputStream.close();
+		}
+	}
+	@Override
+	public InputStream openInputStream(String fileName) throws Exception {
+		return new BufferedInputStream(new FileInputStream(getSerializedFilePath(fileName)));
+	}
+	@Override
+	public void saveToFile(String fileName, String contents) throws Exception {
+		saveBytes(fileName, contents.getBytes(UTF8));
+	}
+	@Override
+	public void appendToFile(String fileName, String contents) throws Exception {
+		appendBytes(fileName, contents.getBytes(UTF8));
+	}
+	@Override
+	public String loadFromFile(String fileName) throws Exception {
+		return new String(loadBytes(fileName), UTF8);
 	}
 	@Override
 	public boolean fileExists(String fileName) {
@@ -65,7 +172,9 @@ public class LegacyStorage extends Storage {
 	}
 	@Override
 	public void deleteFile(String fileName) throws Exception {
-		(new File(getSerializedFilePath(fileName))).delete();
+		String path = getSerializedFilePath(fileName);
+		(new File(path)).delete();
+		fileSync.forget(path);
 	}
 	@Override
 	public void deleteAll() throws Exception {
@@ -0,0 +1,770 @@
+package eu.h2020.helios_social.core.contextualegonetwork.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import eu.h2020.helios_social.core.contextualegonetwork.Storage;
+import eu.h2020.helios_social.core.contextualegonetwork.Utils;
+
+/**
+ * This is a {@link Storage} implementation that keeps all files in a few large segment files instead of
+ * one operating system file per stored file. Saving, appending to and deleting files append records to
+ * the current segment file, whereas an in-memory index maps each file name to the parts of segment files
+ * that hold its contents. Once a segment file exceeds {@link #setSegmentSize(long)} bytes a new one is
+ * started and the index is written to a checkpoint file, so that opening the storage only needs to read
+ * the checkpoint and the records appended after it. Records carry checksums and records that were only
+ * partially written before a crash are discarded when opening the storage.
+ * <p>
+ * Records that are overwritten or deleted remain in their segment files until the latter are compacted.
+ * Whenever the ratio of live record bytes in a full segment file falls below {@link #setCompactionThreshold(double)},
+ * a background thread moves the segment's live files to the current segment file and deletes the segment file.
+ * Compaction can also be performed on the caller's thread through {@link #compact()}.
+ * <p>
+ * This storage uses java.nio and, similarly to {@link NativeStorage}, lacks compatibility with
+ * earlier versions of Android. File paths returned by {@link #getSerializedFilePath(String)} do not
+ * correspond to actual files.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+public class LogStructuredStorage extends Storage {
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT_FILE = "index.checkpoint";
+	private static final long CHECKPOINT_MAGIC = 0x43454E4C4F473031L;
+	private static final byte PUT = 1;
+	private static final byte APPEND = 2;
+	private static final byte DELETE = 3;
+	private static final int HEADER_SIZE = 13;
+
+	private static final class Extent {
+		final int segment;
+		final long offset;
+		final int length;
+		final int recordSize;
+		Extent(int segment, long offset, int length, int recordSize) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.recordSize = recordSize;
+		}
+	}
+
+	private static final class Segment {
+		final int id;
+		final FileChannel channel;
+		long size;
+		long liveBytes = 0;
+		Segment(int id, FileChannel channel, long size) {
+			this.id = id;
+			this.channel = channel;
+			this.size = size;
+		}
+	}
+
+	private final String path;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final HashMap<String, ArrayList<Extent>> index = new HashMap<String, ArrayList<Extent>>();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private long segmentSize = 16 * 1024 * 1024;
+	private double compactionThreshold = 0.5;
+	private boolean sync = false;
+	private int batchDepth = 0;
+	private boolean unsynced = false;
+	private long compactedSegments = 0;
+	private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+	private ExecutorService compactor = null;
+
+	public LogStructuredStorage(String path) {
+		if(path==null || path.isEmpty())
+			Utils.error("For safety reasons, cannot access a null or empty storage location");
+		if(!path.isEmpty() && !path.endsWith(File.separator))
+			Utils.error("LogStructuredStorage path should end with a '"+File.separator+"' character");
+		this.path = path;
+		lock.writeLock().lock();
+		try {
+			open();
+		}
+		catch (Exception e) {
+			Utils.error(e);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String getSerializedFilePath(String fileName) {
+		return path + fileName;
+	}
+
+	/**
+	 * Sets the size past which a new segment file is started. Smaller segments are compacted faster,
+	 * whereas larger segments result in fewer files and checkpoints.
+	 * @param bytes The segment size in bytes (default is 16MB)
+	 */
+	public void setSegmentSize(long bytes) {
+		if (bytes <= 0) {
+			Utils.error(new IllegalArgumentException("Segment size should be positive"));
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			segmentSize = bytes;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets the ratio of live bytes under which full segment files are compacted.
+	 * @param ratio The compaction threshold in the range [0,1], zero to disable background compaction (default is 0.5)
+	 */
+	public void setCompactionThreshold(double ratio) {
+		if (ratio < 0 || ratio > 1) {
+			Utils.error(new IllegalArgumentException("Compaction threshold should lie in the range [0,1]"));
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			compactionThreshold = ratio;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Enables or disables synchronizing segment files to the storage device after each operation.
+	 * Operations within a batch (see {@link #beginBatch()}) are synchronized once the batch ends.
+	 * @param enabled Whether segment files are synchronized (default is <code>false</code>)
+	 */
+	public void setSync(boolean enabled) {
+		lock.writeLock().lock();
+		try {
+			sync = enabled;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of segment files
+	 */
+	public int getSegmentCount() {
+		lock.readLock().lock();
+		try {
+			return segments.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The total size of segment files in bytes
+	 */
+	public long getTotalBytes() {
+		lock.readLock().lock();
+		try {
+			long bytes = 0;
+			for (Segment segment : segments.values())
+				bytes += segment.size;
+			return bytes;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The size of the segment files' records that hold the current contents of files, in bytes
+	 */
+	public long getLiveBytes() {
+		lock.readLock().lock();
+		try {
+			long bytes = 0;
+			for (Segment segment : segments.values())
+				bytes += segment.liveBytes;
+			return bytes;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of segment files compacted since the storage was opened
+	 */
+	public long getCompactedSegments() {
+		lock.readLock().lock();
+		try {
+			return compactedSegments;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private File getSegmentFile(int id) {
+		return new File(path + SEGMENT_PREFIX + String.format("%08d", id) + SEGMENT_SUFFIX);
+	}
+
+	private Segment openSegment(int id) throws IOException {
+		File file = getSegmentFile(id);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		Segment segment = new Segment(id, channel, channel.size());
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private void open() throws Exception {
+		File directory = new File(path);
+		directory.mkdirs();
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+					openSegment(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+			}
+		long tic = System.nanoTime();
+		int replayedSegment = segments.isEmpty() ? 0 : segments.firstKey();
+		long replayedOffset = 0;
+		long[] checkpoint = readCheckpoint();
+		if (checkpoint != null) {
+			replayedSegment = (int) checkpoint[0];
+			replayedOffset = checkpoint[1];
+		}
+		for (Segment segment : segments.values())
+			if (segment.id > replayedSegment || (segment.id == replayedSegment && checkpoint == null))
+				replay(segment, 0);
+			else if (segment.id == replayedSegment)
+				replay(segment, replayedOffset);
+		Utils.log("Opened log-structured storage with " + index.size() + " files in " + segments.size()
+				+ " segments (" + (System.nanoTime() - tic) / 1.E6 + " ms)");
+	}
+
+	private static int checksum(byte type, byte[] record, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(record, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0)
+				throw new IOException("Unexpected end of segment file");
+			position += read;
+		}
+	}
+
+	/**
+	 * Applies the records of a segment file to the index, starting from the given offset. The segment file
+	 * is truncated at the first incomplete or corrupted record, which can only result from a crash.
+	 */
+	private void replay(Segment segment, long offset) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (offset + HEADER_SIZE <= segment.size) {
+			header.clear();
+			readFully(segment.channel, header, offset);
+			header.flip();
+			byte type = header.get();
+			int nameLength = header.getInt();
+			int dataLength = header.getInt();
+			int crc = header.getInt();
+			if (type < PUT || type > DELETE || nameLength < 0 || dataLength < 0
+					|| offset + HEADER_SIZE + nameLength + (long) dataLength > segment.size)
+				break;
+			byte[] record = new byte[nameLength + dataLength];
+			readFully(segment.channel, ByteBuffer.wrap(record), offset + HEADER_SIZE);
+			if (checksum(type, record, 0, record.length) != crc)
+				break;
+			String name = new String(record, 0, nameLength, UTF8);
+			apply(type, name, new Extent(segment.id, offset + HEADER_SIZE + nameLength, dataLength, HEADER_SIZE + nameLength + dataLength));
+			offset += HEADER_SIZE + nameLength + dataLength;
+		}
+		if (offset < segment.size) {
+			Utils.log("Discarded " + (segment.size - offset) + " bytes of incomplete records in segment " + segment.id);
+			segment.channel.truncate(offset);
+			segment.size = offset;
+		}
+	}
+
+	private void release(ArrayList<Extent> extents) {
+		if (extents == null)
+			return;
+		for (Extent extent : extents) {
+			Segment segment = segments.get(extent.segment);
+			if (segment != null)
+				segment.liveBytes -= extent.recordSize;
+		}
+	}
+
+	private void apply(byte type, String name, Extent extent) {
+		ArrayList<Extent> extents = index.get(name);
+		if (type == PUT || (type == APPEND && extents == null)) {
+			release(extents);
+			extents = new ArrayList<Extent>();
+			extents.add(extent);
+			index.put(name, extents);
+			segments.get(extent.segment).liveBytes += extent.recordSize;
+		}
+		else if (type == APPEND) {
+			extents.add(extent);
+			segments.get(extent.segment).liveBytes += extent.recordSize;
+		}
+		else {
+			release(index.remove(name));
+		}
+	}
+
+	private void writeRecord(byte type, String name, byte[] data) throws IOException {
+		byte[] nameBytes = name.getBytes(UTF8);
+		int dataLength = data == null ? 0 : data.length;
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + nameBytes.length + dataLength);
+		record.put(type);
+		record.putInt(nameBytes.length);
+		record.putInt(dataLength);
+		record.putInt(0);
+		record.put(nameBytes);
+		if (data != null)
+			record.put(data);
+		record.putInt(9, checksum(type, record.array(), HEADER_SIZE, nameBytes.length + dataLength));
+		record.flip();
+		Segment segment = segments.isEmpty() ? openSegment(1) : segments.lastEntry().getValue();
+		long offset = segment.size;
+		while (record.hasRemaining())
+			offset += segment.channel.write(record, offset);
+		long recordOffset = segment.size;
+		segment.size = offset;
+		apply(type, name, new Extent(segment.id, recordOffset + HEADER_SIZE + nameBytes.length, dataLength, HEADER_SIZE + nameBytes.length + dataLength));
+		if (sync && batchDepth == 0)
+			segment.channel.force(false);
+		else
+			unsynced = true;
+		if (segment.size >= segmentSize)
+			rollover(segment);
+	}
+
+	/**
+	 * Starts a new segment file, writes a checkpoint and schedules the compaction of full segment files.
+	 */
+	private void rollover(Segment segment) throws IOException {
+		if (sync)
+			segment.channel.force(false);
+		openSegment(segment.id + 1);
+		writeCheckpoint();
+		scheduleCompaction();
+	}
+
+	private void scheduleCompaction() {
+		if (compactionThreshold <= 0 || findCompactionCandidate() == null || !compactionScheduled.compareAndSet(false, true))
+			return;
+		if (compactor == null)
+			compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "CEN log compaction");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		compactor.submit(new Runnable() {
+			@Override
+			public void run() {
+				compactionScheduled.set(false);
+				try {
+					compact();
+				}
+				catch (Exception e) {
+					Utils.log(e);
+				}
+			}
+		});
+	}
+
+	private Segment findCompactionCandidate() {
+		if (segments.size() < 2)
+			return null;
+		for (Segment segment : segments.headMap(segments.lastKey()).values())
+			if (segment.size > 0 && segment.liveBytes < compactionThreshold * segment.size)
+				return segment;
+		return null;
+	}
+
+	/**
+	 * Compacts all full segment files whose ratio of live bytes is under the compaction threshold, by moving
+	 * the files they hold to the current segment file and deleting them. A checkpoint is written before
+	 * deleting segment files.
+	 * @throws Exception on storage failure
+	 * @see #setCompactionThreshold(double)
+	 */
+	public void compact() throws Exception {
+		while (true) {
+			ArrayList<String> names = new ArrayList<String>();
+			int candidate;
+			lock.readLock().lock();
+			try {
+				Segment segment = findCompactionCandidate();
+				if (segment == null)
+					return;
+				candidate = segment.id;
+				for (Map.Entry<String, ArrayList<Extent>> entry : index.entrySet())
+					for (Extent extent : entry.getValue())
+						if (extent.segment == candidate) {
+							names.add(entry.getKey());
+							break;
+						}
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+			// files are moved one at a time, so that other operations are not blocked for long
+			for (String name : names) {
+				lock.writeLock().lock();
+				try {
+					ArrayList<Extent> extents = index.get(name);
+					if (extents != null)
+						for (Extent extent : extents)
+							if (extent.segment == candidate) {
+								writeRecord(PUT, name, read(extents));
+								break;
+							}
+				}
+				finally {
+					lock.writeLock().unlock();
+				}
+			}
+			lock.writeLock().lock();
+			try {
+				Segment segment = segments.get(candidate);
+				if (segment == null || segment.id == segments.lastKey() || segment.liveBytes != 0)
+					return;
+				writeCheckpoint();
+				segment.channel.close();
+				segments.remove(candidate);
+				Files.deleteIfExists(getSegmentFile(candidate).toPath());
+				compactedSegments++;
+				Utils.log("Compacted segment " + candidate);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes the index to the checkpoint file, so that opening the storage does not need to read the
+	 * records appended so far.
+	 * @throws Exception on storage failure
+	 */
+	public void checkpoint() throws Exception {
+		lock.writeLock().lock();
+		try {
+			writeCheckpoint();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void writeCheckpoint() throws IOException {
+		if (segments.isEmpty())
+			return;
+		Segment last = segments.lastEntry().getValue();
+		Path checkpointPath = Paths.get(path + CHECKPOINT_FILE);
+		Path tempPath = Paths.get(path + CHECKPOINT_FILE + ".tmp");
+		FileOutputStream fileOutputStream = new FileOutputStream(tempPath.toFile());
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+			CRC32 crc = new CRC32();
+			ByteBuffer contents = serializeIndex(last);
+			crc.update(contents.array(), 0, contents.limit());
+			output.write(contents.array(), 0, contents.limit());
+			output.writeLong(crc.getValue());
+			output.flush();
+			if (sync)
+				fileOutputStream.getFD().sync();
+		}
+		finally {
+			fileOutputStream.close();
+		}
+		try {
+			Files.move(tempPath, checkpointPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private ByteBuffer serializeIndex(Segment last) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeLong(CHECKPOINT_MAGIC);
+		output.writeInt(last.id);
+		output.writeLong(last.size);
+		output.writeInt(index.size());
+		for (Map.Entry<String, ArrayList<Extent>> entry : index.entrySet()) {
+			byte[] name = entry.getKey().getBytes(UTF8);
+			output.writeInt(name.length);
+			output.write(name);
+			output.writeInt(entry.getValue().size());
+			for (Extent extent : entry.getValue()) {
+				output.writeInt(extent.segment);
+				output.writeLong(extent.offset);
+				output.writeInt(extent.length);
+				output.writeInt(extent.recordSize);
+			}
+		}
+		output.flush();
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	/**
+	 * Loads the index from the checkpoint file, if a valid one exists.
+	 * @return The segment and the offset in it up to which records are reflected in the checkpoint,
+	 *  <code>null</code> if there is no valid checkpoint
+	 */
+	private long[] readCheckpoint() throws IOException {
+		Path checkpointPath = Paths.get(path + CHECKPOINT_FILE);
+		if (!Files.exists(checkpointPath))
+			return null;
+		byte[] bytes = Files.readAllBytes(checkpointPath);
+		if (bytes.length < 8)
+			return null;
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 8);
+		if (ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong() != crc.getValue()) {
+			Utils.log("Ignored corrupted checkpoint of log-structured storage");
+			return null;
+		}
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+		if (input.readLong() != CHECKPOINT_MAGIC)
+			return null;
+		int lastSegment = input.readInt();
+		long lastOffset = input.readLong();
+		HashMap<String, ArrayList<Extent>> checkpointIndex = new HashMap<String, ArrayList<Extent>>();
+		int files = input.readInt();
+		for (int i = 0; i < files; i++) {
+			byte[] name = new byte[input.readInt()];
+			input.readFully(name);
+			int count = input.readInt();
+			ArrayList<Extent> extents = new ArrayList<Extent>(count);
+			for (int j = 0; j < count; j++) {
+				Extent extent = new Extent(input.readInt(), input.readLong(), input.readInt(), input.readInt());
+				// checkpoints referring to missing data are ignored and all segments are replayed instead
+				if (!segments.containsKey(extent.segment))
+					return null;
+				extents.add(extent);
+			}
+			checkpointIndex.put(new String(name, UTF8), extents);
+		}
+		if (!segments.containsKey(lastSegment) || segments.get(lastSegment).size < lastOffset)
+			return null;
+		index.putAll(checkpointIndex);
+		for (ArrayList<Extent> extents : index.values())
+			for (Extent extent : extents)
+				segments.get(extent.segment).liveBytes += extent.recordSize;
+		return new long[] {lastSegment, lastOffset};
+	}
+
+	private byte[] read(ArrayList<Extent> extents) throws IOException {
+		long length = 0;
+		for (Extent extent : extents)
+			length += extent.length;
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("File too large to load: " + length + " bytes");
+		byte[] contents = new byte[(int) length];
+		int position = 0;
+		for (Extent extent : extents) {
+			readFully(segments.get(extent.segment).channel, ByteBuffer.wrap(contents, position, extent.length), extent.offset);
+			position += extent.length;
+		}
+		return contents;
+	}
+
+	@Override
+	public void saveBytes(String fileName, byte[] contents) throws Exception {
+		lock.writeLock().lock();
+		try {
+			writeRecord(PUT, fileName, contents);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void appendBytes(String fileName, byte[] contents) throws Exception {
+		lock.writeLock().lock();
+		try {
+			writeRecord(APPEND, fileName, contents);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public byte[] loadBytes(String fileName) throws Exception {
+		lock.readLock().lock();
+		try {
+			ArrayList<Extent> extents = index.get(fileName);
+			if (extents == null)
+				throw new FileNotFoundException(getSerializedFilePath(fileName));
+			return read(extents);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void saveToFile(String fileName, String contents) throws Exception {
+		saveBytes(fileName, contents.getBytes(UTF8));
+	}
+
+	@Override
+	public void appendToFile(String fileName, String contents) throws Exception {
+		appendBytes(fileName, contents.getBytes(UTF8));
+	}
+
+	@Override
+	public String loadFromFile(String fileName) throws Exception {
+		return new String(loadBytes(fileName), UTF8);
+	}
+
+	@Override
+	public void deleteFile(String fileName) throws Exception {
+		lock.writeLock().lock();
+		try {
+			if (index.containsKey(fileName))
+				writeRecord(DELETE, fileName, null);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean fileExists(String fileName) {
+		lock.readLock().lock();
+		try {
+			return index.containsKey(fileName);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void beginBatch() {
+		lock.writeLock().lock();
+		try {
+			batchDepth++;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Stops background compaction, writes a checkpoint and closes all segment files.
+	 */
+	@Override
+	protected void releaseResources() throws Exception {
+		ExecutorService compactor;
+		lock.writeLock().lock();
+		try {
+			compactionThreshold = 0;
+			compactor = this.compactor;
+			this.compactor = null;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		if (compactor != null) {
+			compactor.shutdown();
+			compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		lock.writeLock().lock();
+		try {
+			if (!segments.isEmpty()) {
+				writeCheckpoint();
+				if (sync)
+					segments.lastEntry().getValue().channel.force(false);
+			}
+			for (Segment segment : segments.values())
+				segment.channel.close();
+			segments.clear();
+			index.clear();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void endBatch() throws Exception {
+		lock.writeLock().lock();
+		try {
+			if (batchDepth > 0)
+				batchDepth--;
+			if (batchDepth == 0 && sync && unsynced && !segments.isEmpty())
+				segments.lastEntry().getValue().channel.force(false);
+			if (batchDepth == 0)
+				unsynced = false;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void deleteAll() throws Exception {
+		lock.writeLock().lock();
+		try {
+			for (Segment segment : segments.values())
+				segment.channel.close();
+			segments.clear();
+			index.clear();
+			File directory = new File(path);
+			if (directory.exists())
+				for (File file : directory.listFiles())
+					file.delete();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
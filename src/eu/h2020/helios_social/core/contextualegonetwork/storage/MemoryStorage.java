@@ -0,0 +1,242 @@
+package eu.h2020.helios_social.core.contextualegonetwork.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import eu.h2020.helios_social.core.contextualegonetwork.Storage;
+import eu.h2020.helios_social.core.contextualegonetwork.Utils;
+
+/**
+ * This is a {@link Storage} implementation that keeps files in memory instead of the file system.
+ * Contrary to {@link NoStorage}, files can be loaded after being saved, so that large-scale experiments
+ * (e.g. simulations) can unload and reload contexts without evoking disk operations. The storage's path
+ * is only used to tell storage instances apart and no files are created there, hence file paths returned by
+ * {@link #getSerializedFilePath(String)} do not correspond to actual files. Stored files are lost when the
+ * application terminates.
+ * <p>
+ * Files can be compressed through {@link #setCompression(boolean)} and the number of stored bytes can
+ * be obtained through {@link #getStoredBytes()}, so that memory usage can be measured. The latency of
+ * actual storage devices can be simulated through {@link #setSimulatedLatency(long, long)}.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+public class MemoryStorage extends Storage {
+	private static final class StoredFile {
+		final byte[] bytes;
+		final int length;
+		final boolean compressed;
+		StoredFile(byte[] bytes, int length, boolean compressed) {
+			this.bytes = bytes;
+			this.length = length;
+			this.compressed = compressed;
+		}
+	}
+
+	private final String path;
+	private final ConcurrentHashMap<String, StoredFile> files = new ConcurrentHashMap<String, StoredFile>();
+	private final AtomicLong storedBytes = new AtomicLong();
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+	private volatile boolean compression = false;
+	private volatile long readLatency = 0;
+	private volatile long writeLatency = 0;
+
+	public MemoryStorage(String path) {
+		if(path==null)
+			Utils.error("Cannot use a null storage location");
+		this.path = path;
+	}
+
+	@Override
+	public String getSerializedFilePath(String fileName) {
+		return path + fileName;
+	}
+
+	/**
+	 * Enables or disables compression of the files written from now on. Existing files are
+	 * not affected and are loaded regardless of whether they are compressed.
+	 * @param enabled Whether files should be compressed (default is <code>false</code>)
+	 */
+	public void setCompression(boolean enabled) {
+		compression = enabled;
+	}
+
+	/**
+	 * @return Whether files are compressed when written
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * Sets the time that each operation waits for before accessing memory, to simulate the latency
+	 * of storage devices. Checking whether files exist is not delayed.
+	 * @param readMicros The delay of loading files in microseconds (default is 0)
+	 * @param writeMicros The delay of saving, appending to and deleting files in microseconds (default is 0)
+	 */
+	public void setSimulatedLatency(long readMicros, long writeMicros) {
+		if (readMicros < 0 || writeMicros < 0) {
+			Utils.error(new IllegalArgumentException("Latency cannot be negative"));
+			return;
+		}
+		readLatency = readMicros * 1000;
+		writeLatency = writeMicros * 1000;
+	}
+
+	/**
+	 * @return The number of stored files
+	 */
+	public int getFileCount() {
+		return files.size();
+	}
+
+	/**
+	 * @return The number of bytes occupied by the contents of stored files, after compression
+	 */
+	public long getStoredBytes() {
+		return storedBytes.get();
+	}
+
+	/**
+	 * @return The number of bytes of the contents of stored files before compression
+	 */
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	private static void delay(long nanos) {
+		if (nanos <= 0)
+			return;
+		long deadline = System.nanoTime() + nanos;
+		for (long remaining = nanos; remaining > 0; remaining = deadline - System.nanoTime())
+			LockSupport.parkNanos(remaining);
+	}
+
+	private static byte[] compress(byte[] contents) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		ByteArrayOutputStream output = new ByteArrayOutputStream(contents.length / 4 + 16);
+		byte[] buffer = new byte[8192];
+		try {
+			deflater.setInput(contents);
+			deflater.finish();
+			while (!deflater.finished())
+				output.write(buffer, 0, deflater.deflate(buffer));
+		}
+		finally {
+			deflater.end();
+		}
+		return output.toByteArray();
+	}
+
+	private static byte[] decompress(StoredFile file) throws DataFormatException {
+		if (!file.compressed)
+			return file.bytes.clone();
+		byte[] contents = new byte[file.length];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(file.bytes);
+			int offset = 0;
+			while (offset < contents.length && !inflater.finished())
+				offset += inflater.inflate(contents, offset, contents.length - offset);
+		}
+		finally {
+			inflater.end();
+		}
+		return contents;
+	}
+
+	private StoredFile store(byte[] contents) {
+		return compression ? new StoredFile(compress(contents), contents.length, true)
+				: new StoredFile(contents.clone(), contents.length, false);
+	}
+
+	private void account(StoredFile removed, StoredFile added) {
+		if (removed != null) {
+			storedBytes.addAndGet(-removed.bytes.length);
+			uncompressedBytes.addAndGet(-removed.length);
+		}
+		if (added != null) {
+			storedBytes.addAndGet(added.bytes.length);
+			uncompressedBytes.addAndGet(added.length);
+		}
+	}
+
+	@Override
+	public void saveBytes(String fileName, byte[] contents) throws Exception {
+		delay(writeLatency);
+		StoredFile file = store(contents);
+		account(files.put(fileName, file), file);
+	}
+
+	@Override
+	public void appendBytes(String fileName, byte[] contents) throws Exception {
+		delay(writeLatency);
+		while (true) {
+			StoredFile previous = files.get(fileName);
+			if (previous == null) {
+				StoredFile file = store(contents);
+				if (files.putIfAbsent(fileName, file) == null) {
+					account(null, file);
+					return;
+				}
+				continue;
+			}
+			byte[] previousContents = decompress(previous);
+			byte[] appended = new byte[previousContents.length + contents.length];
+			System.arraycopy(previousContents, 0, appended, 0, previousContents.length);
+			System.arraycopy(contents, 0, appended, previousContents.length, contents.length);
+			StoredFile file = store(appended);
+			if (files.replace(fileName, previous, file)) {
+				account(previous, file);
+				return;
+			}
+		}
+	}
+
+	@Override
+	public byte[] loadBytes(String fileName) throws Exception {
+		delay(readLatency);
+		StoredFile file = files.get(fileName);
+		if (file == null)
+			throw new FileNotFoundException(getSerializedFilePath(fileName));
+		return decompress(file);
+	}
+
+	@Override
+	public void saveToFile(String fileName, String contents) throws Exception {
+		saveBytes(fileName, contents.getBytes(UTF8));
+	}
+
+	@Override
+	public void appendToFile(String fileName, String contents) throws Exception {
+		appendBytes(fileName, contents.getBytes(UTF8));
+	}
+
+	@Override
+	public String loadFromFile(String fileName) throws Exception {
+		return new String(loadBytes(fileName), UTF8);
+	}
+
+	@Override
+	public void deleteFile(String fileName) throws Exception {
+		delay(writeLatency);
+		account(files.remove(fileName), null);
+	}
+
+	@Override
+	public void deleteAll() throws Exception {
+		delay(writeLatency);
+		for (String fileName : files.keySet())
+			account(files.remove(fileName), null);
+	}
+
+	@Override
+	public boolean fileExists(String fileName) {
+		return files.containsKey(fileName);
+	}
+}
@@ -1,13 +1,28 @@
 package eu.h2020.helios_social.core.contextualegonetwork.storage;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.OutputStreamWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import eu.h2020.helios_social.core.contextualegonetwork.Storage;
 import eu.h2020.helios_social.core.contextualegonetwork.Utils;
@@ -20,50 +35,587 @@ import eu.h2020.helios_social.core.contextualegonetwork.Utils;
  * that NativeStorage uses more recent java interfaces.
  * This makes it safer and future-compatible, but lacks compatibility with 
  * earlier versions of Android that lack java.nio support.
+ * <p>
+ * NativeStorage can also compress the files it writes through {@link #setCompression(boolean)}.
+ * Compressed files start with a header that marks them as such, so that compressed and uncompressed
+ * files can coexist and are both transparently loaded. Compression statistics of each file can be
+ * obtained through {@link #getCompressionStatistics(String)}.
+ * <p>
+ * Saved files are first written to temporary files that are then atomically renamed over the saved ones,
+ * so that crashes while saving do not corrupt previously saved files. Written files can also be synchronized
+ * to the storage device through {@link #setSync(boolean)}, either individually or for whole batches of
+ * operations through {@link #setGroupSync(boolean)}.
+ * <p>
+ * Files are read and written as UTF-8 bytes through {@link FileChannel}s, which transfer data through a
+ * reusable direct buffer of each thread, and String contents are converted to bytes and back only by
+ * {@link #saveToFile(String, String)}, {@link #appendToFile(String, String)} and {@link #loadFromFile(String)}.
+ * <p>
+ * By default, all files are placed directly in the storage's directory. Storage instances created through
+ * {@link #NativeStorage(String, int)}, such as {@link ShardedNativeStorage}, instead place each file in nested
+ * sub-directories named after its hash, so that directories remain small for networks with many nodes
+ * and contexts. Files of a flat directory are moved to their sub-directories when such instances are created.
  * 
  * @author Emmanouil Krasanakis (maniospas@iti.gr)
  */
 public class NativeStorage extends Storage {
+	private static final byte[] COMPRESSED_HEADER = {(byte)0x89, 'C', 'E', 'N'};
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_SHARD_LEVELS = 4;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final ThreadLocal<ByteBuffer> transferBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+		}
+	};
 	private String path;
+	private final int shardLevels;
+	private boolean compression = false;
+	private int compressionLevel = Deflater.BEST_SPEED;
+	private HashMap<String, CompressionStatistics> compressionStatistics = new HashMap<String, CompressionStatistics>();
+	private final FileSync fileSync = new FileSync();
+
+	/**
+	 * This class holds the compression statistics of a file, as measured the last time it was written
+	 * and read in this session.
+	 */
+	public static class CompressionStatistics {
+		private long uncompressedBytes;
+		private long compressedBytes;
+		private double encodeTime;
+		private double decodeTime;
+		/**
+		 * @return The size of the file's contents before compression
+		 */
+		public long getUncompressedBytes() {
+			return uncompressedBytes;
+		}
+		/**
+		 * @return The size of the file's contents after compression (including headers)
+		 */
+		public long getCompressedBytes() {
+			return compressedBytes;
+		}
+		/**
+		 * @return The ratio between the uncompressed and the compressed size
+		 */
+		public double getRatio() {
+			return compressedBytes == 0 ? 0 : uncompressedBytes / (double) compressedBytes;
+		}
+		/**
+		 * @return The time taken to compress the file when last written (in ms)
+		 */
+		public double getEncodeTime() {
+			return encodeTime;
+		}
+		/**
+		 * @return The time taken to decompress the file when last read (in ms)
+		 */
+		public double getDecodeTime() {
+			return decodeTime;
+		}
+	}
+
 	public NativeStorage(String path) {
+		this(path, 0);
+	}
+	/**
+	 * Creates a storage instance that places each file in nested sub-directories of the given path, named after
+	 * consecutive bytes of the hash of the file's name (e.g. <code>path/3f/a0/CEN.json</code> for two levels).
+	 * Files found directly in the given path are moved to their sub-directories. Instantiation should still be
+	 * preferred through {@link Storage#getInstance(String, Class)} of subclasses, such as {@link ShardedNativeStorage}.
+	 * @param path The storage's directory
+	 * @param shardLevels The number of nested sub-directory levels, from 0 (flat directory) to 4
+	 */
+	protected NativeStorage(String path, int shardLevels) {
 		if(path==null || path.isEmpty())
 			Utils.error("For safety reasons, cannot access a null or empty storage location");
     	if(!path.isEmpty() && !path.endsWith(File.separator))
     		Utils.error("NativeStorage path should end with a '"+File.separator+"' character");
+    	if(shardLevels<0 || shardLevels>MAX_SHARD_LEVELS)
+    		Utils.error(new IllegalArgumentException("Shard levels should be between 0 and "+MAX_SHARD_LEVELS));
 		this.path = path;
+		this.shardLevels = shardLevels;
+		if(shardLevels!=0)
+			migrateFlatLayout();
+	}
+	/**
+	 * @return The number of nested sub-directory levels in which files are placed (0 for a flat directory)
+	 */
+	public int getShardLevels() {
+		return shardLevels;
+	}
+	private String getShardPrefix(String fileName) {
+		int hash = fileName.hashCode();
+		hash ^= (hash >>> 16) * 0x45d9f3b;
+		char[] prefix = new char[shardLevels * 3];
+		for (int level = 0; level < shardLevels; level++) {
+			int shard = (hash >>> (8 * level)) & 0xff;
+			prefix[3 * level] = HEX_DIGITS[shard >>> 4];
+			prefix[3 * level + 1] = HEX_DIGITS[shard & 0xf];
+			prefix[3 * level + 2] = File.separatorChar;
+		}
+		return new String(prefix);
+	}
+	private static boolean isShardDirectory(File file) {
+		String name = file.getName();
+		return file.isDirectory() && name.length() == 2
+				&& Character.digit(name.charAt(0), 16) >= 0 && Character.digit(name.charAt(1), 16) >= 0;
+	}
+	private void migrateFlatLayout() {
+		File[] files = new File(path).listFiles();
+		if (files == null)
+			return;
+		int migrated = 0;
+		try {
+			for (File file : files) {
+				// temporary files are leftovers of interrupted saves, which kept the previous contents
+				if (!file.isFile() || file.getName().endsWith(TEMP_SUFFIX))
+					continue;
+				Path shardedPath = createParentDirectories(getSerializedFilePath(file.getName()));
+				if (Files.exists(shardedPath)) {
+					Utils.log("Did not migrate " + file + " because " + shardedPath + " already exists");
+					continue;
+				}
+				try {
+					Files.move(file.toPath(), shardedPath, StandardCopyOption.ATOMIC_MOVE);
+				}
+				catch (AtomicMoveNotSupportedException e) {
+					Files.move(file.toPath(), shardedPath);
+				}
+				migrated++;
+			}
+		}
+		catch (Exception e) {
+			Utils.error(e);
+		}
+		if (migrated != 0)
+			Utils.log("Migrated " + migrated + " files of " + path + " to " + shardLevels + " levels of sub-directories");
 	}
 	@Override
 	public String getSerializedFilePath(String fileName) {
-		return this.path + fileName;
+		if (shardLevels == 0)
+			return this.path + fileName;
+		return this.path + getShardPrefix(fileName) + fileName;
+	}
+	/**
+	 * Enables or disables compression of the files written from now on. Existing files are
+	 * not affected and are loaded regardless of whether they are compressed.
+	 * @param enabled Whether files should be compressed (default is <code>false</code>)
+	 * @see #setCompressionLevel(int)
+	 */
+	public synchronized void setCompression(boolean enabled) {
+		compression = enabled;
+	}
+	/**
+	 * @return Whether files are compressed when written
+	 */
+	public synchronized boolean isCompression() {
+		return compression;
+	}
+	/**
+	 * Sets the {@link Deflater} level used to compress files.
+	 * @param level The compression level, from {@link Deflater#BEST_SPEED} (default) to {@link Deflater#BEST_COMPRESSION}
+	 */
+	public synchronized void setCompressionLevel(int level) {
+		if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			Utils.error(new IllegalArgumentException("Invalid compression level: " + level));
+		else
+			compressionLevel = level;
+	}
+	/**
+	 * Retrieves the compression statistics of a compressed file written or read in this session.
+	 * @param fileName The file's name
+	 * @return The file's statistics, <code>null</code> if no compressed file with the given name has been written or read
+	 */
+	public synchronized CompressionStatistics getCompressionStatistics(String fileName) {
+		return compressionStatistics.get(fileName);
+	}
+	private synchronized CompressionStatistics getOrCreateCompressionStatistics(String fileName) {
+		CompressionStatistics statistics = compressionStatistics.get(fileName);
+		if (statistics == null)
+			compressionStatistics.put(fileName, statistics = new CompressionStatistics());
+		return statistics;
+	}
+	private byte[] compress(String fileName, byte[] input) {
+		long tic = System.nanoTime();
+		Deflater deflater = new Deflater(compressionLevel);
+		ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 4 + COMPRESSED_HEADER.length + 16);
+		output.write(COMPRESSED_HEADER, 0, COMPRESSED_HEADER.length);
+		byte[] buffer = new byte[8192];
+		try {
+			deflater.setInput(input);
+			deflater.finish();
+			while (!deflater.finished())
+				output.write(buffer, 0, deflater.deflate(buffer));
+		}
+		finally {
+			deflater.end();
+		}
+		byte[] compressed = output.toByteArray();
+		CompressionStatistics statistics = getOrCreateCompressionStatistics(fileName);
+		statistics.uncompressedBytes = input.length;
+		statistics.compressedBytes = compressed.length;
+		statistics.encodeTime = (System.nanoTime() - tic) / 1.E6;
+		Utils.log("Compressed " + fileName + " with ratio " + statistics.getRatio() + " (" + statistics.encodeTime + " ms)");
+		return compressed;
+	}
+	private static boolean isCompressed(byte[] bytes, int offset) {
+		if (bytes.length - offset < COMPRESSED_HEADER.length)
+			return false;
+		for (int i = 0; i < COMPRESSED_HEADER.length; i++)
+			if (bytes[offset + i] != COMPRESSED_HEADER[i])
+				return false;
+		return true;
+	}
+	private byte[] decompress(String fileName, byte[] bytes) throws Exception {
+		long tic = System.nanoTime();
+		ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length * 4);
+		byte[] buffer = new byte[8192];
+		Inflater inflater = new Inflater();
+		try {
+			// appended contents are stored as consecutive compressed blocks, each with its own header
+			int offset = 0;
+			while (offset < bytes.length) {
+				if (!isCompressed(bytes, offset))
+					return Utils.error("Corrupted compressed file: " + fileName, new byte[0]);
+				inflater.reset();
+				inflater.setInput(bytes, offset + COMPRESSED_HEADER.length, bytes.length - offset - COMPRESSED_HEADER.length);
+				while (!inflater.finished()) {
+					int inflated = inflater.inflate(buffer);
+					if (inflated == 0 && inflater.needsInput())
+						return Utils.error("Truncated compressed file: " + fileName, new byte[0]);
+					output.write(buffer, 0, inflated);
+				}
+				offset = bytes.length - inflater.getRemaining();
+			}
+		}
+		finally {
+			inflater.end();
+		}
+		CompressionStatistics statistics = getOrCreateCompressionStatistics(fileName);
+		statistics.uncompressedBytes = output.size();
+		statistics.compressedBytes = bytes.length;
+		statistics.decodeTime = (System.nanoTime() - tic) / 1.E6;
+		Utils.log("Decompressed " + fileName + " with ratio " + statistics.getRatio() + " (" + statistics.decodeTime + " ms)");
+		return output.toByteArray();
+	}
+	private boolean isCompressedFile(Path path) throws Exception {
+		if (!Files.exists(path))
+			return compression;
+		byte[] header = new byte[COMPRESSED_HEADER.length];
+		FileInputStream inputStream = new FileInputStream(path.toFile());
+		try {
+			int read = 0;
+			while (read < header.length) {
+				int count = inputStream.read(header, read, header.length - read);
+				if (count < 0)
+					return compression;
+				read += count;
+			}
+		}
+		finally {
+			inputStream.close();
+		}
+		return isCompressed(header, 0);
+	}
+	/**
+	 * Enables or disables synchronizing written files to the storage device, so that saved files survive
+	 * operating system crashes and power failures instead of only application crashes.
+	 * @param enabled Whether written files are synchronized (default is <code>false</code>)
+	 * @see #setGroupSync(boolean)
+	 */
+	public void setSync(boolean enabled) {
+		fileSync.setEnabled(enabled);
+	}
+	/**
+	 * @return Whether written files are synchronized to the storage device
+	 */
+	public boolean isSync() {
+		return fileSync.isEnabled();
+	}
+	/**
+	 * Enables or disables deferring the synchronization of files written within a batch of operations
+	 * (see {@link #beginBatch()}) until the batch ends, which synchronizes all of them at once. Saved files are still
+	 * synchronized before atomically replacing previous ones, so that power failures leave either their previous
+	 * or their new contents, and only synchronizing their directories and appended files is deferred. Hence, files
+	 * saved or appended to within a batch are not guaranteed to survive power failures before the batch ends.
+	 * @param enabled Whether synchronization is deferred to the end of batches (default is <code>false</code>)
+	 * @see #setSync(boolean)
+	 */
+	public void setGroupSync(boolean enabled) {
+		fileSync.setGrouped(enabled);
+	}
+	/**
+	 * @return Whether synchronizing files written within batches is deferred until batches end
+	 */
+	public boolean isGroupSync() {
+		return fileSync.isGrouped();
 	}
 	@Override
-	public void saveToFile(String fileName, String contents) throws Exception {
-		String path = getSerializedFilePath(fileName);
-		getSerializedFilePath(fileName);
+	public void beginBatch() {
+		fileSync.beginBatch();
+	}
+	@Override
+	public void endBatch() throws Exception {
+		HashSet<Path> directories = new HashSet<Path>();
+		for (String path : fileSync.endBatch()) {
+			Path filePath = Paths.get(path);
+			if (Files.isDirectory(filePath)) {
+				directories.add(filePath);
+				continue;
+			}
+			if (!Files.exists(filePath))
+				continue;
+			FileChannel channel = FileChannel.open(filePath, StandardOpenOption.WRITE);
+			try {
+				channel.force(true);
+			}
+			finally {
+				channel.close();
+			}
+			if (filePath.toAbsolutePath().getParent() != null)
+				directories.add(filePath.toAbsolutePath().getParent());
+		}
+		for (Path directory : directories)
+			syncDirectory(directory);
+	}
+	private static void syncDirectory(Path directory) {
+		// not all platforms (e.g. Windows) allow opening directories to synchronize their entries
+		try {
+			FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			}
+			finally {
+				channel.close();
+			}
+		}
+		catch (Exception e) {
+			Utils.log("Could not synchronize directory " + directory + ": " + e);
+		}
+	}
+	private static ByteBuffer getTransferBuffer() {
+		ByteBuffer buffer = transferBuffer.get();
+		buffer.clear();
+		return buffer;
+	}
+	private static void write(FileChannel channel, byte[] bytes, int offset, int length) throws Exception {
+		ByteBuffer buffer = getTransferBuffer();
+		int end = offset + length;
+		while (offset < end) {
+			int count = Math.min(buffer.capacity(), end - offset);
+			buffer.clear();
+			buffer.put(bytes, offset, count);
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			offset += count;
+		}
+	}
+	private static byte[] read(FileChannel channel) throws Exception {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("File too large to load: " + size + " bytes");
+		byte[] bytes = new byte[(int) size];
+		ByteBuffer buffer = getTransferBuffer();
+		int offset = 0;
+		while (offset < bytes.length) {
+			buffer.clear();
+			buffer.limit(Math.min(buffer.capacity(), bytes.length - offset));
+			int count = channel.read(buffer);
+			if (count < 0)
+				break;
+			buffer.flip();
+			buffer.get(bytes, offset, count);
+			offset += count;
+		}
+		return offset == bytes.length ? bytes : Arrays.copyOf(bytes, offset);
+	}
+	/**
+	 * Renames a temporary file, whose contents should already be synchronized if synchronization is enabled,
+	 * over the given one and synchronizes the directory or defers doing so until the end of the batch.
+	 */
+	private void replace(Path tempPath, Path dirPath) throws Exception {
+		try {
+			Files.move(tempPath, dirPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempPath, dirPath, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Path directory = dirPath.toAbsolutePath().getParent();
+		if (directory != null && fileSync.syncDirectoryNow(directory.toString()))
+			syncDirectory(directory);
+	}
+	private Path createParentDirectories(String path) throws Exception {
 		Path dirPath = Paths.get(path);
 		if (dirPath.getParent() != null)
 			Files.createDirectories(dirPath.getParent());
-		Files.deleteIfExists(dirPath);
-		Files.createFile(dirPath);
-		FileOutputStream outputStream = new FileOutputStream(path);
-		OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream);
-		outputStreamWriter.write(contents);
-		outputStreamWriter.close();
-		outputStream.close();
+		return dirPath;
+	}
+	/**
+	 * This class implements streams that write to a temporary file and atomically rename it over
+	 * their file when closed, unless writing has failed.
+	 */
+	private final class ReplacingOutputStream extends OutputStream {
+		private final Path dirPath;
+		private final Path tempPath;
+		private final FileChannel channel;
+		private final OutputStream outputStream;
+		private boolean failed = false;
+		private boolean closed = false;
+		ReplacingOutputStream(String path) throws Exception {
+			dirPath = createParentDirectories(path);
+			tempPath = Paths.get(path + TEMP_SUFFIX);
+			channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			outputStream = new BufferedOutputStream(Channels.newOutputStream(channel), TRANSFER_BUFFER_SIZE);
+		}
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				outputStream.write(b);
+			}
+			catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			try {
+				outputStream.write(bytes, offset, length);
+			}
+			catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+		@Override
+		public void flush() throws IOException {
+			outputStream.flush();
+		}
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				try {
+					outputStream.flush();
+					if (!failed && fileSync.isEnabled())
+						channel.force(true);
+				}
+				finally {
+					channel.close();
+				}
+				if (failed)
+					Files.deleteIfExists(tempPath);
+				else
+					replace(tempPath, dirPath);
+			}
+			catch (IOException e) {
+				throw e;
+			}
+			catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+	}
+	/**
+	 * Writes the contents to a temporary file next to the given one and atomically renames the temporary
+	 * file over the given one, so that a crash while saving leaves either the previous or the new contents.
+	 * If synchronization is enabled, the temporary file is synchronized before renaming it.
+	 */
+	@Override
+	public void saveBytes(String fileName, byte[] contents) throws Exception {
+		String path = getSerializedFilePath(fileName);
+		Path dirPath = createParentDirectories(path);
+		Path tempPath = Paths.get(path + TEMP_SUFFIX);
+		byte[] bytes = isCompression() ? compress(fileName, contents) : contents;
+		FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			write(channel, bytes, 0, bytes.length);
+			if (fileSync.isEnabled())
+				channel.force(true);
+		}
+		finally {
+			channel.close();
+		}
+		replace(tempPath, dirPath);
+	}
+	@Override
+	public void appendBytes(String fileName, byte[] contents) throws Exception {
+		String path = getSerializedFilePath(fileName);
+		Path dirPath = createParentDirectories(path);
+		// appended contents follow the format of the existing file, if any
+		byte[] bytes = isCompressedFile(dirPath) ? compress(fileName, contents) : contents;
+		FileChannel channel = FileChannel.open(dirPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		try {
+			write(channel, bytes, 0, bytes.length);
+			if (fileSync.syncNow(path))
+				channel.force(true);
+		}
+		finally {
+			channel.close();
+		}
+	}
+	@Override
+	public byte[] loadBytes(String fileName) throws Exception {
+		FileChannel channel = FileChannel.open(Paths.get(getSerializedFilePath(fileName)), StandardOpenOption.READ);
+		byte[] bytes;
+		try {
+			bytes = read(channel);
+		}
+		finally {
+			channel.close();
+		}
+		return isCompressed(bytes, 0) ? decompress(fileName, bytes) : bytes;
+	}
+	/**
+	 * Opens a stream that reads the file through its channel. Compressed files are decompressed in memory.
+	 */
+	@Override
+	public InputStream openInputStream(String fileName) throws Exception {
+		FileChannel channel = FileChannel.open(Paths.get(getSerializedFilePath(fileName)), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(COMPRESSED_HEADER.length);
+			while (header.hasRemaining() && channel.read(header) >= 0);
+			if (!header.hasRemaining() && isCompressed(header.array(), 0)) {
+				channel.position(0);
+				byte[] bytes = decompress(fileName, read(channel));
+				channel.close();
+				return new ByteArrayInputStream(bytes);
+			}
+			channel.position(0);
+			return new BufferedInputStream(Channels.newInputStream(channel), TRANSFER_BUFFER_SIZE);
+		}
+		catch (Exception e) {
+			channel.close();
+			throw e;
+		}
+	}
+	/**
+	 * Opens a stream that writes to a temporary file and atomically renames it over the given one when closed.
+	 * If compression is enabled, written bytes are kept in memory and compressed when the stream is closed.
+	 */
+	@Override
+	public OutputStream openOutputStream(String fileName) throws Exception {
+		if (isCompression())
+			return super.openOutputStream(fileName);
+		return new ReplacingOutputStream(getSerializedFilePath(fileName));
+	}
+	@Override
+	public void saveToFile(String fileName, String contents) throws Exception {
+		saveBytes(fileName, contents.getBytes(UTF8));
+	}
+	@Override
+	public void appendToFile(String fileName, String contents) throws Exception {
+		appendBytes(fileName, contents.getBytes(UTF8));
 	}
 	@Override
 	public String loadFromFile(String fileName) throws Exception {
-		BufferedReader br = new BufferedReader(new FileReader(getSerializedFilePath(fileName)));
-		StringBuilder builder = new StringBuilder();
-		String line = br.readLine();
-		while (line != null) {
-			builder.append(line);
-			builder.append(System.lineSeparator());
-			line = br.readLine();
-		}
-		String read = builder.toString();
-		br.close();
-		return read;
+		return new String(loadBytes(fileName), UTF8);
 	}
 	@Override
 	public boolean fileExists(String fileName) {
@@ -71,14 +623,36 @@ public class NativeStorage extends Storage {
 	}
 	@Override
 	public void deleteFile(String fileName) throws Exception {
-		Path path = Paths.get(getSerializedFilePath(fileName));
-		Files.deleteIfExists(path);
+		String path = getSerializedFilePath(fileName);
+		Files.deleteIfExists(Paths.get(path));
+		fileSync.forget(path);
+		synchronized (this) {
+			compressionStatistics.remove(fileName);
+		}
+	}
+	private static void deleteShard(File directory, int levels) {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files) {
+				if (levels > 1 && isShardDirectory(file))
+					deleteShard(file, levels - 1);
+				else if (file.isFile())
+					file.delete();
+			}
+		directory.delete();
 	}
 	@Override
 	public void deleteAll() throws Exception {
 		File path = new File(this.path);
 		if (path.exists())
-			for (File file : path.listFiles())
-				file.delete();
+			for (File file : path.listFiles()) {
+				if (shardLevels != 0 && isShardDirectory(file))
+					deleteShard(file, shardLevels);
+				else
+					file.delete();
+			}
+		synchronized (this) {
+			compressionStatistics.clear();
+		}
 	}
 }
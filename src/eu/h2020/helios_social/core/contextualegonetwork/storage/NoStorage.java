@@ -22,6 +22,10 @@ public class NoStorage extends Storage {
 	public void saveToFile(String fileName, String contents) throws Exception {
 	}
 
+	@Override
+	public void appendToFile(String fileName, String contents) throws Exception {
+	}
+
 	@Override
 	public String loadFromFile(String fileName) throws Exception {
 		Utils.error("Can not load from file with class NoStorage");
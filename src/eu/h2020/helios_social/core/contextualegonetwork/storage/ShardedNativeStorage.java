@@ -0,0 +1,29 @@
+package eu.h2020.helios_social.core.contextualegonetwork.storage;
+
+import eu.h2020.helios_social.core.contextualegonetwork.Storage;
+
+/**
+ * This is a {@link NativeStorage} that places each file in two levels of sub-directories named after
+ * the hash of the file's name (e.g. <code>path/3f/a0/CEN.json</code>), so that networks with tens of
+ * thousands of nodes and contexts do not create huge flat directories, which slow down file creation,
+ * lookup and {@link #deleteAll()} on some file systems. It can be selected when the storage is created,
+ * e.g. through <code>Storage.getInstance(path, ShardedNativeStorage.class)</code>. Files previously saved
+ * directly in the storage's directory by a flat {@link NativeStorage} are moved to their sub-directories
+ * when the storage is created.
+ *
+ * @author Emmanouil Krasanakis (maniospas@iti.gr)
+ */
+public class ShardedNativeStorage extends NativeStorage {
+	/**
+	 * The number of sub-directory levels used by this storage, which yields up to 65536 leaf directories.
+	 */
+	public static final int SHARD_LEVELS = 2;
+
+	/**
+	 * Instantiation should be preferred through {@link Storage#getInstance(String, Class)}.
+	 * @param path The storage's directory
+	 */
+	public ShardedNativeStorage(String path) {
+		super(path, SHARD_LEVELS);
+	}
+}